@@ -0,0 +1,17 @@
+import java.util.UUID;
+
+public class BlockRequest {
+    public final UUID peerID;
+    public final short pieceIndex;
+    public final int offset;
+    public final int length;
+    public final long requestTime;
+
+    public BlockRequest(UUID peerID, short pieceIndex, int offset, int length) {
+        this.peerID = peerID;
+        this.pieceIndex = pieceIndex;
+        this.offset = offset;
+        this.length = length;
+        this.requestTime = System.nanoTime();
+    }
+}
@@ -0,0 +1,168 @@
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class BufferPool {
+    // Room for the message header in front of a block or a piece
+    private static final int HEADER_SLACK = 64;
+    // Control messages, blocks and every possible piece size
+    private static final int[] SIZE_CLASSES = {1024, 16384, 65536, 262144, 1048576};
+    private static final int MAXIMUM_POOLED_BUFFERS = 256;
+    private static final long MAXIMUM_DIRECT_MEMORY = 256L * 1024 * 1024;
+
+    public static final BufferPool SHARED = new BufferPool(MAXIMUM_DIRECT_MEMORY);
+
+    private final long maximumDirectMemory;
+    private final AtomicLong directMemory = new AtomicLong();
+    private final ArrayBlockingQueue<ByteBuffer>[] freeBuffers;
+
+    // Handles that have been acquired but not released yet
+    private final Set<LeakReference> leakReferences = Collections.newSetFromMap(new ConcurrentHashMap<LeakReference, Boolean>());
+    private final ReferenceQueue<PooledBuffer> referenceQueue = new ReferenceQueue<>();
+
+    private final LongAdder acquireCount = new LongAdder();
+    private final LongAdder releaseCount = new LongAdder();
+    private final LongAdder allocationCount = new LongAdder();
+    private final LongAdder fallbackCount = new LongAdder();
+    private final LongAdder leakCount = new LongAdder();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long maximumDirectMemory) {
+        this.maximumDirectMemory = maximumDirectMemory;
+        this.freeBuffers = new ArrayBlockingQueue[SIZE_CLASSES.length];
+
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            freeBuffers[i] = new ArrayBlockingQueue<>(MAXIMUM_POOLED_BUFFERS);
+        }
+    }
+
+    public PooledBuffer acquire(int size) {
+        acquireCount.increment();
+        reclaimLeakedBuffers();
+
+        int sizeClass = findSizeClass(size);
+        if (sizeClass < 0) {
+            // Too large to be pooled, keep it on the heap
+            fallbackCount.increment();
+            return new PooledBuffer(null, ByteBuffer.allocate(size), -1);
+        }
+
+        ByteBuffer buffer = freeBuffers[sizeClass].poll();
+        if (buffer == null) {
+            int capacity = SIZE_CLASSES[sizeClass] + HEADER_SLACK;
+
+            // Stay within the off-heap budget, fall back to the heap when it is exhausted
+            if (directMemory.addAndGet(capacity) > maximumDirectMemory) {
+                directMemory.addAndGet(-capacity);
+                fallbackCount.increment();
+                return new PooledBuffer(null, ByteBuffer.allocate(size), -1);
+            }
+
+            allocationCount.increment();
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+
+        buffer.clear();
+        PooledBuffer pooledBuffer = new PooledBuffer(this, buffer, sizeClass);
+        LeakReference leakReference = new LeakReference(pooledBuffer, buffer, sizeClass, referenceQueue);
+        leakReferences.add(leakReference);
+        pooledBuffer.leakReference = leakReference;
+
+        return pooledBuffer;
+    }
+
+    void release(PooledBuffer pooledBuffer) {
+        releaseCount.increment();
+
+        leakReferences.remove(pooledBuffer.leakReference);
+        pooledBuffer.leakReference.clear();
+
+        recycle(pooledBuffer.buffer, pooledBuffer.sizeClass);
+    }
+
+    private void recycle(ByteBuffer buffer, int sizeClass) {
+        // Let the buffer be collected if the free list of its class is full
+        if (!freeBuffers[sizeClass].offer(buffer)) {
+            directMemory.addAndGet(-buffer.capacity());
+        }
+    }
+
+    private void reclaimLeakedBuffers() {
+        Reference<? extends PooledBuffer> reference;
+        while ((reference = referenceQueue.poll()) != null) {
+            LeakReference leakReference = (LeakReference) reference;
+
+            if (leakReferences.remove(leakReference)) {
+                leakCount.increment();
+                System.err.println("A pooled buffer of " + leakReference.buffer.capacity() + " bytes was not released.");
+
+                recycle(leakReference.buffer, leakReference.sizeClass);
+            }
+        }
+    }
+
+    private int findSizeClass(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i] + HEADER_SLACK) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    public long getAcquireCount() {
+        return acquireCount.sum();
+    }
+
+    public long getReleaseCount() {
+        return releaseCount.sum();
+    }
+
+    public long getAllocationCount() {
+        return allocationCount.sum();
+    }
+
+    public long getFallbackCount() {
+        return fallbackCount.sum();
+    }
+
+    public long getLeakCount() {
+        return leakCount.sum();
+    }
+
+    public long getDirectMemory() {
+        return directMemory.get();
+    }
+
+    public int getInUseCount() {
+        return leakReferences.size();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool [in use: " + getInUseCount() + ", direct memory: " + getDirectMemory() +
+                ", acquired: " + getAcquireCount() + ", released: " + getReleaseCount() +
+                ", allocated: " + getAllocationCount() + ", fallbacks: " + getFallbackCount() +
+                ", leaks: " + getLeakCount() + "]";
+    }
+
+    private static class LeakReference extends PhantomReference<PooledBuffer> {
+        // Strong reference that allows to recycle the buffer after its handle is lost
+        private final ByteBuffer buffer;
+        private final int sizeClass;
+
+        LeakReference(PooledBuffer referent, ByteBuffer buffer, int sizeClass, ReferenceQueue<PooledBuffer> queue) {
+            super(referent, queue);
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+        }
+    }
+}
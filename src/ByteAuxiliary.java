@@ -83,6 +83,31 @@ public class ByteAuxiliary {
         return buffer;
     }
 
+    public static void writeFileInfo(ByteBuffer buffer, FileInfo value) {
+        // Write the name of file
+        buffer.put(toByteArray(value.fileName + '\n'));
+        // Write the size of file
+        buffer.putLong(value.size);
+        // Write the size of piece
+        buffer.putInt(value.pieceSize);
+        // Write the number of pieces
+        buffer.putInt(value.pieceCount);
+        // Write the hash for each piece
+        for (byte[] pieceHash : value.pieceHashes) {
+            buffer.put(pieceHash, 0, FileInfo.SHA_1.getDigestLength());
+        }
+    }
+
+    public static void writePeerInfo(ByteBuffer buffer, PeerInfo value) {
+        // Write the peer ID
+        buffer.putLong(value.peerID.getMostSignificantBits());
+        buffer.putLong(value.peerID.getLeastSignificantBits());
+        // Write inet address of the peer
+        buffer.put(value.inetAddress.getAddress(), 0, Integer.BYTES);
+        // Write port of the peer
+        buffer.putInt(value.port);
+    }
+
     public static short recoverShort(byte[] message) {
         return ByteBuffer.wrap(message).getShort();
     }
@@ -107,10 +132,34 @@ public class ByteAuxiliary {
         return buffer;
     }
 
+    public static String recoverString(ByteBuffer message, int length) {
+        byte[] buffer = new byte[length];
+        message.get(buffer);
+
+        return recoverString(buffer);
+    }
+
+    public static String recoverLine(ByteBuffer message) {
+        // Find the end of the line, which is consumed but not returned
+        int length = 0;
+        while (message.get(message.position() + length) != '\n') {
+            length++;
+        }
+
+        String line = recoverString(message, length);
+        message.get();
+
+        return line;
+    }
+
     public static BitSet recoverBitSet(byte[] message) {
         return BitSet.valueOf(message);
     }
 
+    public static BitSet recoverBitSet(ByteBuffer message) {
+        return BitSet.valueOf(message);
+    }
+
     public static UUID recoverUUID(byte[] message) {
         ByteBuffer buffer = ByteBuffer.wrap(message);
 
@@ -120,6 +169,13 @@ public class ByteAuxiliary {
         return new UUID(firstLong, secondLong);
     }
 
+    public static UUID recoverUUID(ByteBuffer message) {
+        long firstLong = message.getLong();
+        long secondLong = message.getLong();
+
+        return new UUID(firstLong, secondLong);
+    }
+
     public static FileInfo recoverFileInfo(byte[] message) {
         int fileNameLength = 0, offset = 0;
 
@@ -149,6 +205,37 @@ public class ByteAuxiliary {
         return new FileInfo(fileName, size, pieceSize, pieceCount, pieceHashes);
     }
 
+    public static FileInfo recoverFileInfo(ByteBuffer message) {
+        int fileNameLength = 0;
+
+        // Find the length of the file name
+        for (int i = message.position(); i < message.limit(); i++) {
+            if (message.get(i) == '\n') {
+                break;
+            }
+
+            fileNameLength++;
+        }
+
+        // Recover the name of file
+        String fileName = recoverString(message, fileNameLength);
+        message.get();
+        // Recover the size of file
+        long size = message.getLong();
+        // Recover the size of piece
+        int pieceSize = message.getInt();
+        // Recover the number of pieces
+        int pieceCount = message.getInt();
+        // Recover the hash for each piece
+        byte[][] pieceHashes = new byte[pieceCount][];
+        for (int i = 0; i < pieceCount; i++) {
+            pieceHashes[i] = new byte[FileInfo.SHA_1.getDigestLength()];
+            message.get(pieceHashes[i]);
+        }
+
+        return new FileInfo(fileName, size, pieceSize, pieceCount, pieceHashes);
+    }
+
     public static PeerInfo recoverPeerInfo(byte[] message) {
         int offset = 0;
 
@@ -166,4 +253,22 @@ public class ByteAuxiliary {
             return null;
         }
     }
+
+    public static PeerInfo recoverPeerInfo(ByteBuffer message) {
+        try {
+            // Recover the peer ID
+            UUID peerID = recoverUUID(message);
+            // Recover inet address of the peer
+            byte[] address = new byte[Integer.BYTES];
+            message.get(address);
+            InetAddress inetAddress = InetAddress.getByAddress(address);
+            // Recover port of the peer
+            int port = message.getInt();
+
+            return new PeerInfo(peerID, inetAddress, port);
+        } catch (UnknownHostException e) {
+            System.err.println("Can not recover the peer info");
+            return null;
+        }
+    }
 }
@@ -0,0 +1,43 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class ChannelStorage implements IStorage {
+    private final FileChannel fileChannel;
+
+    public ChannelStorage(FileChannel fileChannel) {
+        this.fileChannel = fileChannel;
+    }
+
+    @Override
+    public ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        // Positional reads leave the shared channel position untouched
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public void write(long position, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            position += fileChannel.write(data, position);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        fileChannel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileChannel.close();
+    }
+}
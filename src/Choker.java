@@ -0,0 +1,104 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+public class Choker {
+    private static final int UPLOAD_SLOTS = 4;
+    private static final long RECHOKE_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+    private static final int OPTIMISTIC_UNCHOKE_ROUNDS = 3;
+
+    private final CommunicationMediator mediator;
+    private final Random random = new Random();
+
+    private long lastRechoke;
+    private volatile long nextRechoke;
+    private int round;
+    private UUID optimisticPeerID;
+
+    public Choker(CommunicationMediator mediator) {
+        this.mediator = mediator;
+        this.lastRechoke = System.nanoTime();
+        this.nextRechoke = lastRechoke;
+    }
+
+    public void requestRechoke() {
+        nextRechoke = System.nanoTime();
+    }
+
+    public void rechoke(boolean isSeeding, long now) {
+        if (now < nextRechoke) {
+            return;
+        }
+
+        long elapsed = Math.max(1, now - lastRechoke);
+        boolean isPeriodic = now - lastRechoke >= RECHOKE_INTERVAL;
+
+        lastRechoke = now;
+        nextRechoke = now + RECHOKE_INTERVAL;
+
+        // Measure the rate of every interested peer over the past round
+        ArrayList<Peer> interestedPeers = new ArrayList<>();
+        for (Peer peer : mediator.askForPeers()) {
+            peer.updateTransferRate(isSeeding, elapsed);
+
+            if (peer.isPeerInterested()) {
+                interestedPeers.add(peer);
+            }
+        }
+
+        // Reward the peers which give us the most, or take the most when seeding
+        Collections.sort(interestedPeers, new Comparator<Peer>() {
+            @Override
+            public int compare(Peer o1, Peer o2) {
+                return Long.compare(o2.getTransferRate(), o1.getTransferRate());
+            }
+        });
+
+        HashSet<UUID> unchokedPeerIDs = new HashSet<>();
+        for (int i = 0; i < interestedPeers.size() && unchokedPeerIDs.size() < UPLOAD_SLOTS - 1; i++) {
+            unchokedPeerIDs.add(interestedPeers.get(i).getPeerID());
+        }
+
+        // Rotate the optimistic unchoke every few rounds to discover better peers
+        if (isPeriodic && round++ % OPTIMISTIC_UNCHOKE_ROUNDS == 0) {
+            optimisticPeerID = null;
+        }
+
+        if (optimisticPeerID == null || mediator.askForPeer(optimisticPeerID) == null || unchokedPeerIDs.contains(optimisticPeerID)) {
+            optimisticPeerID = pickOptimisticPeer(interestedPeers, unchokedPeerIDs);
+        }
+
+        if (optimisticPeerID != null) {
+            unchokedPeerIDs.add(optimisticPeerID);
+        }
+
+        for (Peer peer : mediator.askForPeers()) {
+            boolean isUnchoked = unchokedPeerIDs.contains(peer.getPeerID());
+
+            if (isUnchoked && peer.isChoking()) {
+                mediator.sendUnchokeMessage(peer.getPeerID());
+            } else if (!isUnchoked && !peer.isChoking()) {
+                mediator.sendChokeMessage(peer.getPeerID());
+            }
+        }
+    }
+
+    private UUID pickOptimisticPeer(ArrayList<Peer> interestedPeers, HashSet<UUID> unchokedPeerIDs) {
+        ArrayList<Peer> candidates = new ArrayList<>();
+        for (Peer peer : interestedPeers) {
+            if (!unchokedPeerIDs.contains(peer.getPeerID())) {
+                candidates.add(peer);
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        return candidates.get(random.nextInt(candidates.size())).getPeerID();
+    }
+}
@@ -1,27 +1,57 @@
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 public class Client implements ICMessageHandler {
     private static final String DOWNLOAD_LOCATION = "/home/gosha/downloads/2";
     private static final String UPLOAD_LOCATION = "/home/gosha/downloads/1";
 
+    private static final int PEERS_WANTED = 50;
+    private static final int FILES_WANTED = 100;
+    private static final int ENDGAME_REQUESTS_PER_BLOCK = 3;
+    private static final long TIMEOUT_CHECK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final long SCHEDULER_IDLE_TIMEOUT = 1000;
+
     private UUID trackerID;
     private UUID clientID;
     private ConcurrentLinkedQueue<DataRequest> outgoingRequests;
     private ConcurrentLinkedQueue<DataPackage> incomingPieces;
+    private ConcurrentLinkedQueue<BlockRequest> outgoingBlockRequests;
+    private ConcurrentLinkedQueue<BlockPackage> incomingBlocks;
+    private ConcurrentLinkedQueue<UUID> droppedPeers;
+    private ConcurrentLinkedQueue<UUID> chokingPeers;
+    private HashMap<Short, PartialPiece> partialPieces;
 
     private AsynchronousServerSocketChannel serverSocketChannel;
     private CommunicationMediator mediator;
     private MessageObserver observer;
     private FileProxy proxy;
+    private PiecePicker picker;
+    private Choker choker;
+    private Metrics swarmMetrics;
+
+    private Scheduler scheduler;
 
     private boolean isStopping;
+    private boolean isDownloaded;
+    private long nextTimeoutCheck;
+    private volatile long heartbeatInterval;
+    private long nextHeartbeat;
+    private volatile boolean isInterestChanged;
+
+    // The last listing requested from the tracker, continued page by page
+    private ListingMode listingMode;
+    private String listingQuery;
+    private volatile String listingCursor = "";
 
     public Client() {
         System.out.println("\nCLIENT MODE ACTIVE\n");
@@ -33,6 +63,13 @@ public class Client implements ICMessageHandler {
         mediator = new CommunicationMediator();
         mediator.registerClient(this);
 
+        // Create the choker that hands out upload slots
+        choker = new Choker(mediator);
+
+        // Publish the metrics of the client, those of the swarm once the file is known
+        Metrics.CLIENT.register("Client", null);
+        swarmMetrics = new Metrics(Metrics.CLIENT);
+
         // Create message observer and register
         observer = new MessageObserver();
         observer.registerCMessageHandler(this);
@@ -41,6 +78,12 @@ public class Client implements ICMessageHandler {
         outgoingRequests = new ConcurrentLinkedQueue<>();
         // Create incoming pieces queue
         incomingPieces = new ConcurrentLinkedQueue<>();
+        // Create block queues and the pieces being assembled from blocks
+        outgoingBlockRequests = new ConcurrentLinkedQueue<>();
+        incomingBlocks = new ConcurrentLinkedQueue<>();
+        droppedPeers = new ConcurrentLinkedQueue<>();
+        chokingPeers = new ConcurrentLinkedQueue<>();
+        partialPieces = new HashMap<>();
 
         // Start listening for incoming connections
         acceptConnection();
@@ -48,6 +91,14 @@ public class Client implements ICMessageHandler {
         // Initialize stopping signal variable
         isStopping = false;
 
+        // Create the scheduler that is woken up by incoming messages
+        scheduler = new Scheduler(new Runnable() {
+            @Override
+            public void run() {
+                process();
+            }
+        }, SCHEDULER_IDLE_TIMEOUT);
+
         // Generate unique ID for the tracker
         trackerID = UUID.randomUUID();
         // Create the tracker
@@ -60,7 +111,10 @@ public class Client implements ICMessageHandler {
         System.out.println("1. Query the centralised server for list of files available.");
         System.out.println("2. Inform availability of a new file.");
         System.out.println("3. Download a file by specifying the filename.");
-        System.out.println("4. Exit.\n");
+        System.out.println("4. Exit.");
+        System.out.println("5. Search the files available by the beginning of the name.");
+        System.out.println("6. Search the files available by a part of the name.");
+        System.out.println("7. Show more files of the last listing or search.\n");
 
         // Wait for an input from the user
         int option = -1;
@@ -68,7 +122,7 @@ public class Client implements ICMessageHandler {
             option = scanner.nextInt();
             switch (option) {
                 case 1:
-                    mediator.sendDirectoryListingRequestMessage();
+                    requestListing(ListingMode.All, "");
                     break;
                 case 2:
                     // Wait for an input from the user
@@ -76,14 +130,18 @@ public class Client implements ICMessageHandler {
                     System.out.println("\nEnter the file name:");
                     fileName = scanner.nextLine();
 
-                    // Create the file proxy
-                    this.proxy = FileProxy.create(UPLOAD_LOCATION, fileName);
+                    // Create the file proxy, a file which could not be hashed is not announced
+                    FileProxy uploadProxy = FileProxy.create(UPLOAD_LOCATION, fileName);
+                    if (uploadProxy.getFileInfo().hash == null) {
+                        System.err.println("Can not upload the file: " + fileName);
+                        uploadProxy.closeStream();
+                        break;
+                    }
 
-                    // Send request to the tracker
-                    mediator.sendAnnounceRequestMessage(clientID, getFileInfo());
+                    setProxy(uploadProxy);
 
-                    // Start uploading the file
-                    start();
+                    // Send request to the tracker, the upload starts once it is accepted
+                    reportFailure(mediator.sendAnnounceRequestMessage(clientID, getFileInfo()), "announcement");
                     break;
                 case 3:
                     // Wait for an input from the user
@@ -92,15 +150,33 @@ public class Client implements ICMessageHandler {
                     fileName = scanner.nextLine();
 
                     // Send request to the tracker
-                    mediator.sendConnectRequestMessage(clientID, fileName);
+                    reportFailure(mediator.sendConnectRequestMessage(clientID, PEERS_WANTED, fileName), "connection");
                     break;
                 case 4:
                     mediator.sendExitMessage(clientID);
                     mediator.notifyAboutClosedConnection();
-                    isStopping = true;
+                    stop();
 
                     stopAcceptConnection();
                     break;
+                case 5:
+                case 6:
+                    // Wait for an input from the user
+                    scanner.nextLine();
+                    System.out.println("\nEnter the text to search:");
+                    String query = scanner.nextLine();
+
+                    requestListing(option == 5 ? ListingMode.Prefix : ListingMode.Substring, query);
+                    break;
+                case 7:
+                    if (listingCursor.isEmpty()) {
+                        System.out.println("\nThere are no more files to show.");
+                        break;
+                    }
+
+                    // Continue after the last file the tracker has listed
+                    reportFailure(mediator.sendDirectoryListingRequestMessage(listingMode, FILES_WANTED, listingCursor, listingQuery), "listing");
+                    break;
             }
         }
 
@@ -110,104 +186,340 @@ public class Client implements ICMessageHandler {
         }
     }
 
-    private void start() {
-        // Process downloads
-        new Thread() {
-            public void run() {
-                while ((proxy.getPieces().cardinality() != proxy.getFileInfo().pieceCount) && (!isStopping)) {
-                    download();
+    private void requestListing(ListingMode mode, String query) {
+        listingMode = mode;
+        listingQuery = query;
 
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                        System.err.println("Problem with the upload thread!");
-                    }
+        // The first page starts from the beginning of the catalog
+        reportFailure(mediator.sendDirectoryListingRequestMessage(mode, FILES_WANTED, "", query), "listing");
+    }
+
+    private void reportFailure(CompletableFuture<Void> reply, final String request) {
+        // Replies are handled as they arrive, only the requests the tracker has never answered are left here
+        reply.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable throwable) {
+                if (throwable != null) {
+                    System.err.println("\nThe tracker has not replied to the " + request + " request.");
                 }
+            }
+        });
+    }
 
+    private void setProxy(FileProxy proxy) {
+        this.proxy = proxy;
+
+        // Track availability of the pieces that are still missing
+        this.picker = new PiecePicker(proxy.getFileInfo().pieceCount, proxy.getPieces());
+
+        proxy.setMetrics(swarmMetrics);
+        swarmMetrics.register("Swarm", proxy.getFileInfo().fileName);
+    }
+
+    private void start() {
+        // Process downloads and uploads whenever an event arrives
+        scheduler.start();
+    }
+
+    private void process() {
+        if (!isDownloaded) {
+            download();
+
+            if (proxy.getPieces().cardinality() == proxy.getFileInfo().pieceCount) {
+                isDownloaded = true;
                 System.out.println("The file has been downloaded.");
+
+                // Tell the tracker that we are a seeder now
+                reportFailure(mediator.sendAnnounceRequestMessage(clientID, getFileInfo()), "announcement");
             }
-        }.start();
+        }
 
-        // Process uploads
-        new Thread() {
-            public void run() {
-                while (!isStopping) {
-                    upload();
+        upload();
 
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                        System.err.println("Problem with the upload thread!");
-                    }
-                }
-            }
-        }.start();
+        long now = System.nanoTime();
+
+        // Reallocate the upload slots once per round
+        choker.rechoke(isDownloaded, now);
+
+        // Keep the tracker aware that we are alive
+        if (heartbeatInterval > 0 && now >= nextHeartbeat) {
+            reportFailure(mediator.sendHeartbeatMessage(clientID), "heartbeat");
+            nextHeartbeat = now + heartbeatInterval;
+        }
+    }
+
+    private void setHeartbeatInterval(int interval) {
+        // The first heartbeat is due one interval after the reply
+        nextHeartbeat = System.nanoTime() + TimeUnit.SECONDS.toNanos(interval);
+        heartbeatInterval = TimeUnit.SECONDS.toNanos(interval);
+    }
+
+    private void stop() {
+        isStopping = true;
+        scheduler.stop();
     }
 
     private void download() {
-        final int MAXIMUM_NUMBER_OF_REQUESTS = 10;
+        // Give the blocks requested from dropped peers to others
+        UUID droppedPeerID;
+        while ((droppedPeerID = droppedPeers.poll()) != null) {
+            for (PartialPiece partialPiece : partialPieces.values()) {
+                partialPiece.releaseBlocks(droppedPeerID);
+            }
+        }
+
+        // Nothing requested from the peers which have choked us is going to arrive
+        UUID chokingPeerID;
+        while ((chokingPeerID = chokingPeers.poll()) != null) {
+            Peer peer = mediator.askForPeer(chokingPeerID);
+            if (peer == null || !peer.isPeerChoking()) {
+                continue;
+            }
+
+            for (PartialPiece partialPiece : partialPieces.values()) {
+                partialPiece.releaseBlocks(chokingPeerID);
+            }
+            peer.updateOutstandingBlocks(-peer.getOutstandingBlocks());
+        }
 
         DataPackage piece;
         while ((piece = incomingPieces.poll()) != null) {
-            proxy.writePiece(piece.pieceIndex, piece.data);
+            if (proxy.writePiece(piece.pieceIndex, piece.data)) {
+                picker.exclude(piece.pieceIndex);
+                isInterestChanged = true;
 
-            // Notify others about the new available piece
-            mediator.sendPieceUpdateMessage(piece.pieceIndex);
+                // Notify others about the new available piece
+                mediator.sendPieceUpdateMessage(piece.pieceIndex);
+            }
         }
 
-        int requestCount = 0;
-        for (short pieceIndex : getSortedPieces()) {
-            if (requestCount++ < MAXIMUM_NUMBER_OF_REQUESTS) {
-                UUID peerID = mediator.findPeerOwningPiece(pieceIndex);
-                mediator.sendDataRequestMessage(peerID, pieceIndex);
+        BlockPackage block;
+        while ((block = incomingBlocks.poll()) != null) {
+            // Measure the download rate of the peer for the choker
+            Peer sender = mediator.askForPeer(block.peerID);
+            if (sender != null) {
+                sender.updateDownloadedBytes(block.data.length);
+            }
+
+            PartialPiece partialPiece = partialPieces.get(block.pieceIndex);
+            if (partialPiece == null || !partialPiece.addBlock(block.offset, block.data)) {
+                // Late or duplicate block, its request slot has been freed when the request was dropped
+                mediator.notifyAboutReceivedBlock(block.peerID, -1);
+                continue;
+            }
+
+            long roundTripTime = -1;
+            for (BlockRequest request : partialPiece.removeRequests(block.offset)) {
+                // Every request of the block ends here, so its slot is freed exactly once
+                mediator.releaseRequestSlot(request.peerID);
+
+                if (request.peerID.equals(block.peerID)) {
+                    roundTripTime = System.nanoTime() - request.requestTime;
+                } else {
+                    // Cancel the duplicate requests of the block sent in endgame
+                    mediator.sendCancelMessage(request.peerID, request.pieceIndex, request.offset, request.length);
+                }
+            }
+
+            mediator.notifyAboutReceivedBlock(block.peerID, roundTripTime);
+
+            if (!partialPiece.isComplete()) {
+                continue;
+            }
+
+            // The piece is put together, let the proxy verify and store it
+            partialPieces.remove(block.pieceIndex);
+            if (proxy.writePiece(partialPiece.pieceIndex, partialPiece.data)) {
+                mediator.sendPieceUpdateMessage(partialPiece.pieceIndex);
+                isInterestChanged = true;
             } else {
-                break;
+                System.err.println("The piece with the index " + partialPiece.pieceIndex + " is corrupted.");
+
+                // Let the piece be picked again
+                picker.include(partialPiece.pieceIndex);
             }
         }
-    }
 
-    private Short[] getSortedPieces() {
-        // Get array of available pieces of peers
-        BitSet[] availablePieces = mediator.askForAvailablePieces();
+        // Re-request the blocks that peers have not delivered in time
+        long now = System.nanoTime();
+        if (now >= nextTimeoutCheck) {
+            checkRequestTimeouts(now);
+            nextTimeoutCheck = now + TIMEOUT_CHECK_INTERVAL;
+        }
+
+        // Tell the peers whether they have something we still need
+        if (isInterestChanged) {
+            isInterestChanged = false;
+            updateInterest();
+        }
+
+        // Keep the request pipeline of every peer which has unchoked us full
+        for (Peer peer : mediator.askForPeers()) {
+            if (peer.isPeerChoking()) {
+                continue;
+            }
 
-        int pieceCount = proxy.getFileInfo().pieceCount;
+            while (peer.getOutstandingBlocks() < peer.getRequestWindow()) {
+                PartialPiece partialPiece = findPartialPiece(peer);
 
-        // Calculate occurrences of each piece in available pieces of peers
-        int zeroCount = pieceCount;
-        short[] occurrences = new short[pieceCount];
-        for (BitSet bitSet : availablePieces) {
-            int index = -1;
-            while ((index = bitSet.nextSetBit(index + 1)) != -1) {
-                if (occurrences[index]++ == 0) {
-                    zeroCount--;
+                if (partialPiece == null) {
+                    partialPiece = startPartialPiece(peer);
                 }
+
+                int blockIndex;
+                if (partialPiece != null) {
+                    blockIndex = partialPiece.nextBlockToRequest();
+                } else if (isEndgame() && (partialPiece = findEndgamePiece(peer)) != null) {
+                    // Ask for the missing blocks again from this peer as well
+                    blockIndex = partialPiece.nextEndgameBlock(peer.getPeerID(), ENDGAME_REQUESTS_PER_BLOCK);
+                } else {
+                    break;
+                }
+
+                partialPiece.markRequested(blockIndex, peer.getPeerID());
+
+                mediator.sendBlockRequestMessage(peer.getPeerID(), partialPiece.pieceIndex,
+                        partialPiece.getBlockOffset(blockIndex), partialPiece.getBlockLength(blockIndex));
             }
         }
+    }
 
-        // Create array of indexes
-        Short[] indexes = new Short[pieceCount - zeroCount];
-        for (short i = 0, j = 0; i < pieceCount; i++) {
-            if (occurrences[i] != 0) {
-                indexes[j++] = i;
+    private void checkRequestTimeouts(long now) {
+        for (PartialPiece partialPiece : partialPieces.values()) {
+            for (BlockRequest request : partialPiece.removeExpiredRequests(mediator, now)) {
+                // Shrink the window of the slow peer and stop waiting for the block, a late arrival frees nothing
+                mediator.notifyAboutRequestTimeout(request.peerID);
+                mediator.releaseRequestSlot(request.peerID);
+                mediator.sendCancelMessage(request.peerID, request.pieceIndex, request.offset, request.length);
+
+                retryRequest(partialPiece, request);
             }
         }
+    }
 
-        // Sort the array of indexes accordingly to occurrences of each piece
-        Arrays.sort(indexes, new Comparator<Short>() {
-            @Override
-            public int compare(Short o1, Short o2) {
-                return occurrences[o1] - occurrences[o2];
+    private void retryRequest(PartialPiece partialPiece, BlockRequest expiredRequest) {
+        int blockIndex = expiredRequest.offset / PartialPiece.BLOCK_SIZE;
+        if (partialPiece.isRequested(blockIndex)) {
+            return;
+        }
+
+        // Hand the block to another peer with a free request slot
+        for (Peer peer : mediator.askForPeers()) {
+            if (!peer.getPeerID().equals(expiredRequest.peerID) && !peer.isPeerChoking() && peer.getAvailablePieces().get(partialPiece.pieceIndex)
+                    && peer.getOutstandingBlocks() < peer.getRequestWindow()) {
+                partialPiece.markRequested(blockIndex, peer.getPeerID());
+                mediator.sendBlockRequestMessage(peer.getPeerID(), partialPiece.pieceIndex, expiredRequest.offset, expiredRequest.length);
+                return;
             }
-        });
+        }
+    }
+
+    private PartialPiece findPartialPiece(Peer peer) {
+        // Prefer finishing pieces which are already in progress
+        for (PartialPiece partialPiece : partialPieces.values()) {
+            if (peer.getAvailablePieces().get(partialPiece.pieceIndex) && partialPiece.nextBlockToRequest() != -1) {
+                return partialPiece;
+            }
+        }
+
+        return null;
+    }
+
+    private boolean isEndgame() {
+        // Every missing piece is in progress already
+        int missingPieceCount = proxy.getFileInfo().pieceCount - proxy.getPieces().cardinality();
+        if (missingPieceCount != partialPieces.size()) {
+            return false;
+        }
+
+        // And the missing blocks fit into the request window of the peers
+        int missingBlockCount = 0;
+        for (PartialPiece partialPiece : partialPieces.values()) {
+            missingBlockCount += partialPiece.getMissingBlockCount();
+        }
+
+        int requestWindow = 0;
+        for (Peer peer : mediator.askForPeers()) {
+            if (!peer.isPeerChoking()) {
+                requestWindow += peer.getRequestWindow();
+            }
+        }
+
+        return missingBlockCount <= requestWindow;
+    }
+
+    private void updateInterest() {
+        for (Peer peer : mediator.askForPeers()) {
+            BitSet missingPieces = (BitSet) peer.getAvailablePieces().clone();
+            missingPieces.andNot(proxy.getPieces());
+
+            boolean isInterested = !missingPieces.isEmpty();
+            if (isInterested != peer.isInterested()) {
+                mediator.sendInterestMessage(peer.getPeerID(), isInterested);
+            }
+        }
+    }
+
+    private PartialPiece findEndgamePiece(Peer peer) {
+        for (PartialPiece partialPiece : partialPieces.values()) {
+            if (peer.getAvailablePieces().get(partialPiece.pieceIndex)
+                    && partialPiece.nextEndgameBlock(peer.getPeerID(), ENDGAME_REQUESTS_PER_BLOCK) != -1) {
+                return partialPiece;
+            }
+        }
+
+        return null;
+    }
 
-        return indexes;
+    private PartialPiece startPartialPiece(Peer peer) {
+        // Start the rarest piece the peer can provide
+        int pieceIndex = picker.pick(peer.getAvailablePieces());
+        if (pieceIndex == -1) {
+            return null;
+        }
+
+        picker.exclude(pieceIndex);
+
+        PartialPiece partialPiece = new PartialPiece((short) pieceIndex, proxy.getPieceSize((short) pieceIndex));
+        partialPieces.put((short) pieceIndex, partialPiece);
+
+        return partialPiece;
     }
 
     private void upload() {
         DataRequest pieceRequest;
         while ((pieceRequest = outgoingRequests.poll()) != null) {
-            byte[] data = proxy.readPiece(pieceRequest.pieceIndex);
-            mediator.sendDataPackageMessage(pieceRequest.peerID, pieceRequest.pieceIndex, data);
+            // Serve only the peers holding an upload slot
+            Peer peer = mediator.askForPeer(pieceRequest.peerID);
+            if (peer == null || peer.isChoking()) {
+                continue;
+            }
+
+            ByteBuffer data = proxy.getPieceBuffer(pieceRequest.pieceIndex);
+            if (data != null) {
+                peer.updateUploadedBytes(data.remaining());
+                mediator.sendDataPackageMessage(pieceRequest.peerID, pieceRequest.pieceIndex, data);
+            }
+        }
+
+        BlockRequest blockRequest;
+        while ((blockRequest = outgoingBlockRequests.poll()) != null) {
+            // Serve only pieces which have been verified
+            if (!proxy.getPieces().get(blockRequest.pieceIndex)) {
+                continue;
+            }
+
+            // Requests of choked peers are dropped, they have to ask again once unchoked
+            Peer peer = mediator.askForPeer(blockRequest.peerID);
+            if (peer == null || peer.isChoking()) {
+                continue;
+            }
+
+            ByteBuffer data = proxy.getBlockBuffer(blockRequest.pieceIndex, blockRequest.offset, blockRequest.length);
+            if (data != null) {
+                peer.updateUploadedBytes(data.remaining());
+                mediator.sendBlockPackageMessage(blockRequest.peerID, blockRequest.pieceIndex, blockRequest.offset, data);
+            }
         }
     }
 
@@ -257,12 +569,34 @@ public class Client implements ICMessageHandler {
         }
     }
 
+    public void handleDroppedPeer(UUID peerID, BitSet availablePieces) {
+        checkOutgoingRequests(peerID);
+
+        // The pieces of the peer are not available anymore
+        if (picker != null) {
+            picker.removePeer(availablePieces);
+        }
+
+        // Let the scheduler release the blocks requested from the peer
+        droppedPeers.add(peerID);
+
+        // The upload slot of the peer can be given to another one
+        choker.requestRechoke();
+        scheduler.wakeUp();
+    }
+
     public void checkOutgoingRequests(UUID peerID) {
         for (DataRequest dataRequest : outgoingRequests) {
             if (dataRequest.peerID.equals(peerID)) {
                 outgoingRequests.remove(dataRequest);
             }
         }
+
+        for (BlockRequest blockRequest : outgoingBlockRequests) {
+            if (blockRequest.peerID.equals(peerID)) {
+                outgoingBlockRequests.remove(blockRequest);
+            }
+        }
     }
 
     @Override
@@ -280,12 +614,19 @@ public class Client implements ICMessageHandler {
         if (proxy.getPieces().cardinality() != 0) {
             mediator.sendAvailablePiecesMessage(realPeerID);
         }
+
+        scheduler.wakeUp();
     }
 
     @Override
     public void handleAvailablePiecesMessage(UUID peerID, BitSet availablePieces) {
         // Update current available pieces for the peer
-        mediator.notifyAboutReceivedAvailablePieces(peerID, availablePieces);
+        BitSet previousPieces = mediator.notifyAboutReceivedAvailablePieces(peerID, availablePieces);
+
+        picker.removePeer(previousPieces);
+        picker.addPeer(availablePieces);
+        isInterestChanged = true;
+        scheduler.wakeUp();
     }
 
     @Override
@@ -293,6 +634,7 @@ public class Client implements ICMessageHandler {
         // Put the request into appropriate queue
         DataRequest dataRequest = new DataRequest(peerID, pieceIndex);
         outgoingRequests.add(dataRequest);
+        scheduler.wakeUp();
     }
 
     @Override
@@ -300,12 +642,102 @@ public class Client implements ICMessageHandler {
         // Put the piece into appropriate queue
         DataPackage dataPackage = new DataPackage(peerID, pieceIndex, data);
         incomingPieces.add(dataPackage);
+        scheduler.wakeUp();
+    }
+
+    @Override
+    public void handleBlockRequestMessage(UUID peerID, short pieceIndex, int offset, int length) {
+        // Drop the frames naming a piece the file does not have
+        if (!isValidPiece(pieceIndex)) {
+            return;
+        }
+
+        // Put the request into appropriate queue
+        BlockRequest blockRequest = new BlockRequest(peerID, pieceIndex, offset, length);
+        outgoingBlockRequests.add(blockRequest);
+        scheduler.wakeUp();
+    }
+
+    @Override
+    public void handleBlockPackageMessage(UUID peerID, short pieceIndex, int offset, byte[] data) {
+        // Drop the frames naming a piece the file does not have
+        if (!isValidPiece(pieceIndex)) {
+            return;
+        }
+
+        // Put the block into appropriate queue
+        BlockPackage blockPackage = new BlockPackage(peerID, pieceIndex, offset, data);
+        incomingBlocks.add(blockPackage);
+        scheduler.wakeUp();
+    }
+
+    @Override
+    public void handleCancelMessage(UUID peerID, short pieceIndex, int offset, int length) {
+        // Drop the frames naming a piece the file does not have
+        if (!isValidPiece(pieceIndex)) {
+            return;
+        }
+
+        // Drop the request if it has not been served yet
+        for (BlockRequest blockRequest : outgoingBlockRequests) {
+            if (blockRequest.peerID.equals(peerID) && blockRequest.pieceIndex == pieceIndex
+                    && blockRequest.offset == offset && blockRequest.length == length) {
+                outgoingBlockRequests.remove(blockRequest);
+                break;
+            }
+        }
+    }
+
+    private boolean isValidPiece(short pieceIndex) {
+        return proxy != null && pieceIndex >= 0 && pieceIndex < proxy.getFileInfo().pieceCount;
     }
 
     @Override
     public void handlePieceUpdateMessage(UUID peerID, short pieceIndex) {
+        // Drop the frames naming a piece the file does not have
+        if (!isValidPiece(pieceIndex)) {
+            return;
+        }
+
         // Update the new available piece of the peer
-        mediator.notifyAboutReceivedPieceUpdate(peerID, pieceIndex);
+        if (mediator.notifyAboutReceivedPieceUpdate(peerID, pieceIndex)) {
+            picker.addPiece(pieceIndex);
+            isInterestChanged = true;
+        }
+        scheduler.wakeUp();
+    }
+
+    @Override
+    public void handleChokeMessage(UUID peerID) {
+        mediator.notifyAboutReceivedChoke(peerID, true);
+
+        // Let the scheduler give the requested blocks to other peers
+        chokingPeers.add(peerID);
+        scheduler.wakeUp();
+    }
+
+    @Override
+    public void handleUnchokeMessage(UUID peerID) {
+        mediator.notifyAboutReceivedChoke(peerID, false);
+        scheduler.wakeUp();
+    }
+
+    @Override
+    public void handleInterestedMessage(UUID peerID) {
+        mediator.notifyAboutReceivedInterest(peerID, true);
+
+        // Give the peer a chance to get a free upload slot right away
+        choker.requestRechoke();
+        scheduler.wakeUp();
+    }
+
+    @Override
+    public void handleNotInterestedMessage(UUID peerID) {
+        mediator.notifyAboutReceivedInterest(peerID, false);
+
+        // The upload slot of the peer can be given to another one
+        choker.requestRechoke();
+        scheduler.wakeUp();
     }
 
     public UUID getClientID() {
@@ -320,30 +752,67 @@ public class Client implements ICMessageHandler {
         return proxy.getFileInfo();
     }
 
+    public Metrics getSwarmMetrics() {
+        return swarmMetrics;
+    }
+
     @Override
-    public void handleDirectoryListingReplyMessage(UUID trackerID, String directoryListing) {
+    public void handleDirectoryListingReplyMessage(UUID trackerID, String cursor, String directoryListing) {
+        listingCursor = cursor;
+
         System.out.println("\nAvailable files at the tracker:");
         System.out.println(directoryListing);
+
+        if (!cursor.isEmpty()) {
+            System.out.println("\t...\n");
+        }
     }
 
     @Override
-    public void handleAnnounceReplyMessage(UUID trackerID, int status) {
+    public void handleAnnounceReplyMessage(UUID trackerID, int status, int interval) {
         if (status == 1) {
             System.out.println("\nThe announcement was successful!");
+            setHeartbeatInterval(interval);
+
+            // Start uploading the file
+            start();
         } else {
             System.out.println("\nThe announcement was NOT successful!");
-            isStopping = true;
+            stop();
         }
     }
 
     @Override
-    public void handleConnectReplyMessage(UUID trackerID, int status, FileInfo fileInfo, ArrayList<PeerInfo> peersInfo) {
+    public void handleHeartbeatReplyMessage(UUID trackerID, int status, int interval) {
         if (status == 1) {
-            // Create the file proxy
-            this.proxy = new FileProxy(DOWNLOAD_LOCATION, fileInfo, null);
+            return;
+        }
+
+        // The tracker has expired us, join the swarm again as a seeder or a leecher
+        FileInfo fileInfo = getFileInfo();
+        if (proxy.getPieces().cardinality() == fileInfo.pieceCount) {
+            reportFailure(mediator.sendAnnounceRequestMessage(clientID, fileInfo), "announcement");
+        } else {
+            reportFailure(mediator.sendConnectRequestMessage(clientID, PEERS_WANTED, fileInfo.fileName), "connection");
+        }
+    }
+
+    @Override
+    public void handleConnectReplyMessage(UUID trackerID, int status, int interval, FileInfo fileInfo, ArrayList<PeerInfo> peersInfo) {
+        if (status == 1) {
+            setHeartbeatInterval(interval);
+
+            // Create the file proxy, unless we are joining the swarm again
+            if (proxy == null || !Arrays.equals(proxy.getFileInfo().hash, fileInfo.hash)) {
+                setProxy(new FileProxy(DOWNLOAD_LOCATION, fileInfo, null));
+            }
 
             // Process received list of peers and connect to all of them
             for (PeerInfo peerInfo : peersInfo) {
+                if (mediator.askForPeer(peerInfo.peerID) != null) {
+                    continue;
+                }
+
                 Peer peer = new Peer(peerInfo, mediator, observer);
                 peer.connect();
             }
@@ -352,7 +821,11 @@ public class Client implements ICMessageHandler {
             start();
         } else {
             System.out.println("\nThe connection was NOT successful!");
-            isStopping = true;
+
+            // Keep exchanging pieces with the connected peers if only joining the swarm again has failed
+            if (proxy == null) {
+                stop();
+            }
         }
     }
 }
@@ -377,4 +850,18 @@ class DataPackage {
         this.pieceIndex = pieceIndex;
         this.data = data;
     }
+}
+
+class BlockPackage {
+    public final UUID peerID;
+    public final short pieceIndex;
+    public final int offset;
+    public final byte[] data;
+
+    public BlockPackage(UUID peerID, short pieceIndex, int offset, byte[] data) {
+        this.peerID = peerID;
+        this.pieceIndex = pieceIndex;
+        this.offset = offset;
+        this.data = data;
+    }
 }
\ No newline at end of file
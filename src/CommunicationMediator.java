@@ -1,7 +1,10 @@
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class CommunicationMediator {
-    private HashMap<UUID, Peer> peers = new HashMap<>();
+    private ConcurrentHashMap<UUID, Peer> peers = new ConcurrentHashMap<>();
     private Client client = null;
     private Tracker tracker = null;
 
@@ -18,8 +21,11 @@ public class CommunicationMediator {
     }
 
     public void deregisterPeer(UUID peerID) {
-        client.checkOutgoingRequests(peerID);
-        peers.remove(peerID);
+        // A peer may be dropped more than once, report it only the first time
+        Peer peer = peers.remove(peerID);
+        if (peer != null) {
+            client.handleDroppedPeer(peerID, peer.getAvailablePieces());
+        }
     }
 
     public void sendHandshakeMessage(UUID peerID) {
@@ -36,18 +42,77 @@ public class CommunicationMediator {
         peer.sendMessage(message);
     }
 
-    public void sendDataRequestMessage(UUID peerID, short pieceIndex) {
+    public void sendDataPackageMessage(UUID peerID, short pieceIndex, ByteBuffer data) {
+        Peer peer = peers.get(peerID);
+        byte[] header = MessageBuilder.buildDataPackageHeader(pieceIndex, data.remaining());
+
+        peer.sendMessage(header, data);
+    }
+
+    public void sendBlockRequestMessage(UUID peerID, short pieceIndex, int offset, int length) {
+        Peer peer = peers.get(peerID);
+        byte[] message = MessageBuilder.buildBlockRequestMessage(pieceIndex, offset, length);
+
+        peer.updateOutstandingBlocks(1);
+        peer.getMetrics().recordBlockRequested();
+        peer.sendMessage(message);
+    }
+
+    public void sendBlockPackageMessage(UUID peerID, short pieceIndex, int offset, ByteBuffer data) {
+        Peer peer = peers.get(peerID);
+        if (peer == null) {
+            return;
+        }
+
+        byte[] header = MessageBuilder.buildBlockPackageHeader(pieceIndex, offset, data.remaining());
+
+        peer.sendMessage(header, data);
+    }
+
+    public void sendCancelMessage(UUID peerID, short pieceIndex, int offset, int length) {
+        Peer peer = peers.get(peerID);
+        if (peer == null) {
+            return;
+        }
+
+        byte[] message = MessageBuilder.buildCancelMessage(pieceIndex, offset, length);
+
+        peer.sendMessage(message);
+    }
+
+    public void sendChokeMessage(UUID peerID) {
+        Peer peer = peers.get(peerID);
+        if (peer == null) {
+            return;
+        }
+
+        byte[] message = MessageBuilder.buildChokeMessage();
+
+        peer.setChoking(true);
+        peer.sendMessage(message);
+    }
+
+    public void sendUnchokeMessage(UUID peerID) {
         Peer peer = peers.get(peerID);
-        byte[] message = MessageBuilder.buildDataRequestMessage(pieceIndex);
+        if (peer == null) {
+            return;
+        }
+
+        byte[] message = MessageBuilder.buildUnchokeMessage();
 
-        peer.updateRequestedPieces(pieceIndex);
+        peer.setChoking(false);
         peer.sendMessage(message);
     }
 
-    public void sendDataPackageMessage(UUID peerID, short pieceIndex, byte[] data) {
+    public void sendInterestMessage(UUID peerID, boolean isInterested) {
         Peer peer = peers.get(peerID);
-        byte[] message = MessageBuilder.buildDataPackageMessage(pieceIndex, data);
+        if (peer == null) {
+            return;
+        }
+
+        byte[] message = isInterested ? MessageBuilder.buildInterestedMessage() : MessageBuilder.buildNotInterestedMessage();
 
+        peer.setInterested(isInterested);
         peer.sendMessage(message);
     }
 
@@ -61,28 +126,36 @@ public class CommunicationMediator {
         }
     }
 
-    public void sendDirectoryListingRequestMessage() {
-        byte[] message = MessageBuilder.buildDirectoryListingRequestMessage();
+    public CompletableFuture<Void> sendDirectoryListingRequestMessage(ListingMode mode, int count, String cursor, String query) {
+        byte[] message = MessageBuilder.buildDirectoryListingRequestMessage(mode, count, cursor, query);
 
-        tracker.sendMessage(message);
+        return tracker.sendMessage(message);
     }
 
-    public void sendAnnounceRequestMessage(UUID peerID, FileInfo fileInfo) {
+    public CompletableFuture<Void> sendAnnounceRequestMessage(UUID peerID, FileInfo fileInfo) {
         byte[] message = MessageBuilder.buildAnnounceRequestMessage(peerID, fileInfo);
 
-        tracker.sendMessage(message);
+        return tracker.sendMessage(message);
+    }
+
+    public CompletableFuture<Void> sendConnectRequestMessage(UUID peerID, int peersWanted, String fileName) {
+        byte[] message = MessageBuilder.buildConnectRequestMessage(peerID, peersWanted, fileName);
+
+        return tracker.sendMessage(message);
     }
 
-    public void sendConnectRequestMessage(UUID peerID, String fileName) {
-        byte[] message = MessageBuilder.buildConnectRequestMessage(peerID, fileName);
+    public CompletableFuture<Void> sendHeartbeatMessage(UUID peerID) {
+        byte[] message = MessageBuilder.buildHeartbeatMessage(peerID);
 
-        tracker.sendMessage(message);
+        // The reply tells whether the tracker still knows the peer
+        return tracker.sendMessage(message);
     }
 
     public void sendExitMessage(UUID peerID) {
         byte[] message = MessageBuilder.buildExitMessage(peerID);
 
-        tracker.sendMessage(message);
+        // No reply is expected to an exit
+        tracker.sendNotification(message);
     }
 
     public void notifyAboutReceivedHandshake(UUID oldPeerID, UUID realPeerID) {
@@ -96,16 +169,19 @@ public class CommunicationMediator {
         }
     }
 
-    public void notifyAboutReceivedAvailablePieces(UUID peerID, BitSet availablePieces) {
-        // Update available pieces for the peer
+    public BitSet notifyAboutReceivedAvailablePieces(UUID peerID, BitSet availablePieces) {
+        // Update available pieces for the peer and return the previous ones
         Peer peer = peers.get(peerID);
+        BitSet previousPieces = peer.getAvailablePieces();
         peer.setAvailablePieces(availablePieces);
+
+        return previousPieces;
     }
 
-    public void notifyAboutReceivedPieceUpdate(UUID peerID, short pieceIndex) {
-        // Update the new available piece of the peer
+    public boolean notifyAboutReceivedPieceUpdate(UUID peerID, short pieceIndex) {
+        // Update the new available piece of the peer and tell whether it is new
         Peer peer = peers.get(peerID);
-        peer.updateAvailablePieces(pieceIndex);
+        return peer.updateAvailablePieces(pieceIndex);
     }
 
     public void notifyAboutClosedConnection() {
@@ -117,32 +193,56 @@ public class CommunicationMediator {
         tracker.disconnect();
     }
 
-    public BitSet[] askForAvailablePieces() {
-        BitSet[] availablePieces = new BitSet[peers.size()];
+    public void releaseRequestSlot(UUID peerID) {
+        // Called once for every request which stops being tracked, however it has ended
+        Peer peer = peers.get(peerID);
+        if (peer != null) {
+            peer.updateOutstandingBlocks(-1);
+        }
+    }
 
-        int i = 0;
-        for (Peer peer : peers.values()) {
-            BitSet bitSet = (BitSet) peer.getAvailablePieces().clone();
-            bitSet.andNot(peer.getRequestedPieces());
-            bitSet.andNot(client.getAvailablePieces());
+    public void notifyAboutReceivedBlock(UUID peerID, long roundTripTime) {
+        Peer peer = peers.get(peerID);
+        if (peer != null) {
+            peer.getMetrics().recordBlockReceived();
 
-            availablePieces[i++] = bitSet;
+            if (roundTripTime >= 0) {
+                peer.updateRoundTripTime(roundTripTime);
+            }
         }
+    }
 
-        return availablePieces;
+    public void notifyAboutReceivedChoke(UUID peerID, boolean isChoking) {
+        Peer peer = peers.get(peerID);
+        if (peer != null) {
+            peer.setPeerChoking(isChoking);
+        }
     }
 
-    public UUID findPeerOwningPiece(short pieceIndex) {
-        ArrayList<Peer> arrayList = new ArrayList<>(peers.values());
-        Collections.shuffle(arrayList);
+    public void notifyAboutReceivedInterest(UUID peerID, boolean isInterested) {
+        Peer peer = peers.get(peerID);
+        if (peer != null) {
+            peer.setPeerInterested(isInterested);
+        }
+    }
 
-        for (Peer peer : arrayList) {
-            if (peer.getAvailablePieces().get(pieceIndex)) {
-                return peer.getPeerID();
-            }
+    public void notifyAboutRequestTimeout(UUID peerID) {
+        Peer peer = peers.get(peerID);
+        if (peer != null) {
+            peer.notifyAboutRequestTimeout();
         }
+    }
+
+    public Peer askForPeer(UUID peerID) {
+        return peers.get(peerID);
+    }
+
+    public Collection<Peer> askForPeers() {
+        return peers.values();
+    }
 
-        return null;
+    public Metrics askForSwarmMetrics() {
+        return client.getSwarmMetrics();
     }
 
     public void dropPeer(UUID peerID) {
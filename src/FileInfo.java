@@ -4,17 +4,15 @@ import java.security.NoSuchAlgorithmException;
 public class FileInfo {
     public static final int BYTES = Long.BYTES + Integer.BYTES + Integer.BYTES;
 
-    public static final MessageDigest SHA_1;
-    static {
-        MessageDigest tmp = null;
-        try {
-            tmp = MessageDigest.getInstance("SHA-1");
-        } catch (NoSuchAlgorithmException e) {
-            System.err.println("There is no such algorithm for encoding!");
-        }
+    public static final MessageDigest SHA_1 = newDigest();
 
-        SHA_1 = tmp;
-    }
+    // MessageDigest is not thread-safe, so every thread hashes with its own instance
+    private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newDigest();
+        }
+    };
 
     public final long size;
     public final int pieceSize;
@@ -42,6 +40,19 @@ public class FileInfo {
 
     private byte[] getHash() {
         byte[] buffer = ByteAuxiliary.toByteArray(this);
-        return SHA_1.digest(buffer);
+        return getDigest().digest(buffer);
+    }
+
+    public static MessageDigest getDigest() {
+        return DIGESTS.get();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            System.err.println("There is no such algorithm for encoding!");
+            return null;
+        }
     }
 }
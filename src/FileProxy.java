@@ -1,8 +1,7 @@
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SeekableByteChannel;
-import java.nio.file.Files;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
@@ -12,10 +11,15 @@ import java.util.EnumSet;
 import java.util.LinkedList;
 
 public class FileProxy {
+    private static final boolean USE_MAPPED_STORAGE = Boolean.parseBoolean(System.getProperty("storage.mapped", "true"));
+    private static final FlushPolicy FLUSH_POLICY = getFlushPolicy(System.getProperty("storage.flush", "PERIODIC"));
+
     private BitSet pieces;
 
     private FileInfo fileInfo;
-    private SeekableByteChannel byteChannel;
+    private IStorage storage;
+    private ResumeState resumeState;
+    private Metrics metrics = Metrics.CLIENT;
 
     public FileProxy(String location, FileInfo fileInfo, BitSet pieces) {
         this.pieces = (pieces != null) ?  pieces : new BitSet(fileInfo.pieceCount);
@@ -27,71 +31,181 @@ public class FileProxy {
 
         openStream(filePath);
         if (fileInfo.pieceHashes == null) {
-            byte[][] pieceHashes = new byte[fileInfo.pieceCount][];
-
-            for (short i = 0; i < fileInfo.pieceCount; i++) {
-                byte[] piece = readPiece(i);
-                pieceHashes[i] = FileInfo.SHA_1.digest(piece);
-            }
+            // Left without hashes if the file can not be read, the caller checks it before announcing
+            byte[][] pieceHashes = PieceHasher.hash(this, fileInfo);
 
             // Reinitialize variable in case of absence of piece hashes values at the beginning
             this.fileInfo = new FileInfo(fileInfo.fileName, fileInfo.size, fileInfo.pieceSize, fileInfo.pieceCount, pieceHashes);
         }
+
+        // Pick up a download which has been interrupted earlier
+        if (pieces == null) {
+            resume(location);
+        }
+    }
+
+    private static FlushPolicy getFlushPolicy(String name) {
+        try {
+            return FlushPolicy.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown flush policy " + name + ", the storage is flushed periodically.");
+            return FlushPolicy.PERIODIC;
+        }
+    }
+
+    private void resume(String location) {
+        resumeState = ResumeState.open(location, fileInfo);
+
+        // Trust the checkpoint and verify only the pieces written after it
+        pieces.or(resumeState.getCheckpointedPieces());
+
+        BitSet touchedPieces = resumeState.getTouchedPieces();
+        int index = -1;
+        while ((index = touchedPieces.nextSetBit(index + 1)) != -1) {
+            if (verifyPiece((short) index, readPiece((short) index))) {
+                pieces.set(index);
+            }
+        }
+
+        if (pieces.cardinality() != 0) {
+            System.out.println("Resuming the download with " + pieces.cardinality() + " of " + fileInfo.pieceCount + " pieces.");
+        }
+
+        // The file may already be complete, then no piece is written which could drop the state
+        if (pieces.cardinality() == fileInfo.pieceCount) {
+            resumeState.delete();
+            resumeState = null;
+            return;
+        }
+
+        checkpoint();
+    }
+
+    private void checkpoint() {
+        try {
+            // Make sure the pieces are on disk before they are recorded as present
+            storage.flush();
+        } catch (IOException e) {
+            System.err.println("Can not flush the file.");
+            return;
+        }
+
+        resumeState.checkpoint(pieces);
     }
 
     private void openStream(Path filePath) {
         try {
-            byteChannel = Files.newByteChannel(filePath, EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.READ,StandardOpenOption.WRITE));
+            FileChannel fileChannel = FileChannel.open(filePath, EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.READ,StandardOpenOption.WRITE));
+
+            // Mapping requires the file to be non-empty
+            if (USE_MAPPED_STORAGE && fileInfo.size > 0) {
+                storage = new MappedStorage(fileChannel, fileInfo.size, fileInfo.pieceSize, FLUSH_POLICY);
+            } else {
+                storage = new ChannelStorage(fileChannel);
+            }
         } catch (IOException e) {
             System.err.println("Can not open byte stream for the file.");
         }
     }
 
     public void closeStream() {
+        if (resumeState != null) {
+            checkpoint();
+            resumeState.close();
+        }
+
         try {
-            byteChannel.close();
+            storage.close();
         } catch (IOException e) {
             System.err.println("Can not close byte stream for the file.");
         }
     }
 
     public byte[] readPiece(short index) {
-        long position = index * fileInfo.pieceSize;
-        ByteBuffer piece = ByteBuffer.allocate(getPieceSize(index));
+        ByteBuffer piece = getPieceBuffer(index);
+        if (piece == null) {
+            return new byte[getPieceSize(index)];
+        }
+
+        byte[] buffer = new byte[piece.remaining()];
+        piece.get(buffer);
+
+        return buffer;
+    }
+
+    public ByteBuffer getPieceBuffer(short index) {
+        long position = (long) index * fileInfo.pieceSize;
 
         try {
-            byteChannel.position(position);
-            byteChannel.read(piece);
+            // The returned buffer does not depend on any shared position and may be used concurrently
+            return storage.read(position, getPieceSize(index));
         } catch (IOException e) {
             System.err.println("Can not read piece with the index: " + index);
+            return null;
+        }
+    }
+
+    public ByteBuffer getBlockBuffer(short index, int offset, int length) {
+        // Refuse blocks which do not lie within the piece
+        if (offset < 0 || length <= 0 || (long) offset + length > getPieceSize(index)) {
+            return null;
         }
 
-        return piece.array();
+        long position = (long) index * fileInfo.pieceSize + offset;
+
+        try {
+            return storage.read(position, length);
+        } catch (IOException e) {
+            System.err.println("Can not read block of piece with the index: " + index);
+            return null;
+        }
     }
 
-    public void writePiece(short index, byte[] buffer) {
-        if (!verifyPiece(index, buffer)) {
-            return;
+    public boolean writePiece(short index, byte[] buffer) {
+        // Time hashing and writing apart to tell a CPU or disk bound transfer
+        long startTime = System.nanoTime();
+        boolean isValid = verifyPiece(index, buffer);
+        metrics.recordHashTime(System.nanoTime() - startTime);
+
+        if (!isValid) {
+            metrics.recordHashFailure();
+            return false;
         }
 
-        long position = index * fileInfo.pieceSize;
+        long position = (long) index * fileInfo.pieceSize;
         ByteBuffer piece = ByteBuffer.wrap(buffer);
 
+        startTime = System.nanoTime();
         try {
-            byteChannel.position(position);
-            byteChannel.write(piece);
+            storage.write(position, piece);
         } catch (IOException e) {
             System.err.println("Can not write piece with the index: " + index);
+            return false;
+        } finally {
+            metrics.recordDiskWriteTime(System.nanoTime() - startTime);
         }
 
-        pieces.flip(index);
+        pieces.set(index);
+        metrics.recordPieceReceived();
+
+        if (resumeState != null) {
+            if (pieces.cardinality() == fileInfo.pieceCount) {
+                // Nothing to resume once the file is complete
+                resumeState.delete();
+                resumeState = null;
+            } else if (resumeState.record(index)) {
+                checkpoint();
+            }
+        }
+
+        return true;
     }
 
     private boolean verifyPiece(short index, byte[] buffer) {
-        return Arrays.equals(fileInfo.pieceHashes[index], FileInfo.SHA_1.digest(buffer));
+        return Arrays.equals(fileInfo.pieceHashes[index], FileInfo.getDigest().digest(buffer));
     }
 
-    private int getPieceSize(short index) {
+    public int getPieceSize(short index) {
         if (index == fileInfo.pieceCount - 1) {
             int remainder = (int) (fileInfo.size % fileInfo.pieceSize);
             if (remainder != 0) {
@@ -102,6 +216,10 @@ public class FileProxy {
         return fileInfo.pieceSize;
     }
 
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
     public FileInfo getFileInfo() {
         return fileInfo;
     }
@@ -0,0 +1,5 @@
+public enum FlushPolicy {
+    ON_WRITE,
+    PERIODIC,
+    ON_CLOSE
+}
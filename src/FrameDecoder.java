@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class FrameDecoder {
+    private static final int LENGTH_FIELD_SIZE = Integer.BYTES;
+    private static final int MINIMUM_FRAME_SIZE = LENGTH_FIELD_SIZE + 1;
+    private static final int MAXIMUM_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private final int initialCapacity;
+
+    // Accumulated bytes are kept in [readIndex, buffer.position())
+    private PooledBuffer pooledBuffer;
+    private ByteBuffer buffer;
+    private int readIndex;
+
+    public FrameDecoder(int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.pooledBuffer = BufferPool.SHARED.acquire(initialCapacity);
+        this.buffer = pooledBuffer.getBuffer();
+        this.readIndex = 0;
+    }
+
+    public ByteBuffer getReadBuffer() {
+        // Make room for the next read only when the buffer is exhausted
+        if (!buffer.hasRemaining()) {
+            if (readIndex > 0) {
+                compact();
+            } else {
+                resize(buffer.capacity() * 2);
+            }
+        }
+
+        return buffer;
+    }
+
+    public ByteBuffer nextFrame() throws IOException {
+        int available = buffer.position() - readIndex;
+        if (available < LENGTH_FIELD_SIZE) {
+            reset();
+            return null;
+        }
+
+        // Parse the length prefix in place
+        int frameLength = buffer.getInt(readIndex);
+        if (frameLength < MINIMUM_FRAME_SIZE || frameLength > MAXIMUM_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + frameLength);
+        }
+
+        if (available < frameLength) {
+            // Ensure the whole frame fits into the buffer once it arrives
+            if (buffer.capacity() - readIndex < frameLength) {
+                if (buffer.capacity() < frameLength) {
+                    resize(frameLength);
+                } else {
+                    compact();
+                }
+            }
+
+            return null;
+        }
+
+        // Hand out the frame body (without the length prefix) as a slice of the buffer
+        ByteBuffer frame = buffer.duplicate();
+        frame.limit(readIndex + frameLength);
+        frame.position(readIndex + LENGTH_FIELD_SIZE);
+
+        readIndex += frameLength;
+        return frame.slice();
+    }
+
+    private void reset() {
+        // Rewind for free when everything has been consumed
+        if (readIndex == buffer.position()) {
+            buffer.clear();
+            readIndex = 0;
+
+            // Give a large buffer back to the pool once the large frame is processed
+            if (buffer.capacity() > initialCapacity * 2) {
+                pooledBuffer.release();
+                pooledBuffer = BufferPool.SHARED.acquire(initialCapacity);
+                buffer = pooledBuffer.getBuffer();
+            }
+        }
+    }
+
+    public void release() {
+        pooledBuffer.release();
+    }
+
+    private void compact() {
+        buffer.limit(buffer.position());
+        buffer.position(readIndex);
+        buffer.compact();
+
+        readIndex = 0;
+    }
+
+    private void resize(int capacity) {
+        PooledBuffer newPooledBuffer = BufferPool.SHARED.acquire(capacity);
+        ByteBuffer newBuffer = newPooledBuffer.getBuffer();
+
+        buffer.limit(buffer.position());
+        buffer.position(readIndex);
+        newBuffer.put(buffer);
+        pooledBuffer.release();
+
+        pooledBuffer = newPooledBuffer;
+        buffer = newBuffer;
+        readIndex = 0;
+    }
+}
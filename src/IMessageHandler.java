@@ -11,14 +11,23 @@ interface ICMessageHandler {
     void handleDataRequestMessage(UUID peerID, short pieceIndex);
     void handleDataPackageMessage(UUID peerID, short pieceIndex, byte[] data);
     void handlePieceUpdateMessage(UUID peerID, short pieceIndex);
-    void handleDirectoryListingReplyMessage(UUID trackerID, String directoryListing);
-    void handleAnnounceReplyMessage(UUID trackerID, int status);
-    void handleConnectReplyMessage(UUID trackerID, int status, FileInfo fileInfo, ArrayList<PeerInfo> peersInfo);
+    void handleBlockRequestMessage(UUID peerID, short pieceIndex, int offset, int length);
+    void handleBlockPackageMessage(UUID peerID, short pieceIndex, int offset, byte[] data);
+    void handleCancelMessage(UUID peerID, short pieceIndex, int offset, int length);
+    void handleChokeMessage(UUID peerID);
+    void handleUnchokeMessage(UUID peerID);
+    void handleInterestedMessage(UUID peerID);
+    void handleNotInterestedMessage(UUID peerID);
+    void handleDirectoryListingReplyMessage(UUID trackerID, String cursor, String directoryListing);
+    void handleAnnounceReplyMessage(UUID trackerID, int status, int interval);
+    void handleConnectReplyMessage(UUID trackerID, int status, int interval, FileInfo fileInfo, ArrayList<PeerInfo> peersInfo);
+    void handleHeartbeatReplyMessage(UUID trackerID, int status, int interval);
 }
 
 interface ISMessageHandler {
-    void handleDirectoryListingRequestMessage(UUID packetID);
-    void handleAnnounceRequestMessage(UUID packetID, UUID peerID, FileInfo fileInfo);
-    void handleConnectRequestMessage(UUID packetID, UUID peerID, String fileName);
-    void handleExitMessage(UUID packetID, UUID peerID);
+    void handleDirectoryListingRequestMessage(RequestContext context, ListingMode mode, int count, String cursor, String query);
+    void handleAnnounceRequestMessage(RequestContext context, UUID peerID, FileInfo fileInfo);
+    void handleConnectRequestMessage(RequestContext context, UUID peerID, int peersWanted, String fileName);
+    void handleExitMessage(RequestContext context, UUID peerID);
+    void handleHeartbeatMessage(RequestContext context, UUID peerID);
 }
\ No newline at end of file
@@ -0,0 +1,13 @@
+public interface IMetricsMXBean {
+    long getBytesIn();
+    long getBytesOut();
+    long getBlocksRequested();
+    long getBlocksReceived();
+    long getRequestTimeouts();
+    long getPiecesReceived();
+    long getHashFailures();
+    double getAverageRoundTripTime();
+    long getQueueDepth();
+    double getHashTime();
+    double getDiskWriteTime();
+}
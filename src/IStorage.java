@@ -0,0 +1,9 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface IStorage {
+    ByteBuffer read(long position, int length) throws IOException;
+    void write(long position, ByteBuffer data) throws IOException;
+    void flush() throws IOException;
+    void close() throws IOException;
+}
@@ -0,0 +1,26 @@
+public enum ListingMode {
+    All(0),
+    Prefix(1),
+    Substring(2);
+
+    private int value;
+    ListingMode(int value) {
+        this.value = value;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    public static ListingMode fromInteger(int value) {
+        switch(value) {
+            case 0:
+                return All;
+            case 1:
+                return Prefix;
+            case 2:
+                return Substring;
+        }
+        return null;
+    }
+}
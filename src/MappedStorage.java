@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class MappedStorage implements IStorage {
+    private static final int MAXIMUM_WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final long FLUSH_INTERVAL = 64L * 1024 * 1024;
+
+    private final FileChannel fileChannel;
+    private final FlushPolicy flushPolicy;
+    private final long size;
+    private final long windowSize;
+
+    private final AtomicReferenceArray<MappedByteBuffer> windows;
+    private final AtomicLong unflushedBytes = new AtomicLong();
+
+    public MappedStorage(FileChannel fileChannel, long size, int pieceSize, FlushPolicy flushPolicy) {
+        this.fileChannel = fileChannel;
+        this.flushPolicy = flushPolicy;
+        this.size = size;
+
+        // Windows hold a whole number of pieces, so a piece never spans two windows
+        this.windowSize = (long) pieceSize * Math.max(1, MAXIMUM_WINDOW_SIZE / pieceSize);
+        this.windows = new AtomicReferenceArray<>((int) ((size + windowSize - 1) / windowSize));
+    }
+
+    @Override
+    public ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = slice(position, length);
+        return buffer.asReadOnlyBuffer();
+    }
+
+    @Override
+    public void write(long position, ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        slice(position, length).put(data);
+
+        switch (flushPolicy) {
+            case ON_WRITE:
+                getWindow(position).force();
+                break;
+            case PERIODIC:
+                // Only the writer which resets the count it has seen performs the flush, later writes stay counted
+                long unflushed = unflushedBytes.addAndGet(length);
+                if (unflushed >= FLUSH_INTERVAL && unflushedBytes.compareAndSet(unflushed, 0)) {
+                    flush();
+                }
+                break;
+            case ON_CLOSE:
+                break;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (int i = 0; i < windows.length(); i++) {
+            MappedByteBuffer window = windows.get(i);
+            if (window != null) {
+                window.force();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (flushPolicy != FlushPolicy.ON_WRITE) {
+            flush();
+        }
+
+        fileChannel.close();
+    }
+
+    private ByteBuffer slice(long position, int length) throws IOException {
+        // Each caller works on its own view, so no position is shared between threads
+        ByteBuffer buffer = getWindow(position).duplicate();
+        int offset = (int) (position % windowSize);
+
+        buffer.limit(offset + length);
+        buffer.position(offset);
+
+        return buffer.slice();
+    }
+
+    private MappedByteBuffer getWindow(long position) throws IOException {
+        int index = (int) (position / windowSize);
+
+        MappedByteBuffer window = windows.get(index);
+        if (window == null) {
+            long windowPosition = index * windowSize;
+            long length = Math.min(windowSize, size - windowPosition);
+
+            // Map lazily, a mapping created by a losing thread is simply dropped
+            window = fileChannel.map(FileChannel.MapMode.READ_WRITE, windowPosition, length);
+            if (!windows.compareAndSet(index, null, window)) {
+                window = windows.get(index);
+            }
+        }
+
+        return window;
+    }
+}
@@ -1,4 +1,5 @@
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.UUID;
@@ -48,18 +49,16 @@ public class MessageBuilder {
         return message;
     }
 
-    public static byte[] buildDataPackageMessage(short pieceIndex, byte[] data) {
-        int offset = 0, length = 7 + data.length;
+    public static byte[] buildDataPackageHeader(short pieceIndex, int dataLength) {
+        int offset = 0, length = 7;
 
         byte[] message = new byte[length];
-        // Write the size of message
-        System.arraycopy(ByteAuxiliary.toByteArray(length), 0, message, offset, Integer.BYTES);
+        // Write the size of message including the piece that follows the header
+        System.arraycopy(ByteAuxiliary.toByteArray(length + dataLength), 0, message, offset, Integer.BYTES);
         // Write the type of message
         message[4] = (byte) MessageType.DataPackage.getValue();
         // Write the index of providing piece
         System.arraycopy(ByteAuxiliary.toByteArray(pieceIndex), 0, message, (offset += Integer.BYTES + 1), Short.BYTES);
-        // Write the piece
-        System.arraycopy(data, 0, message, (offset += Short.BYTES), data.length);
 
         return message;
     }
@@ -78,92 +77,195 @@ public class MessageBuilder {
         return message;
     }
 
-    public static byte[] buildDirectoryListingRequestMessage() {
-        int length = 1;
+    public static byte[] buildBlockRequestMessage(short pieceIndex, int blockOffset, int blockLength) {
+        int offset = 0, length = 15;
 
         byte[] message = new byte[length];
+        // Write the size of message
+        System.arraycopy(ByteAuxiliary.toByteArray(length), 0, message, offset, Integer.BYTES);
         // Write the type of message
-        message[0] = (byte) MessageType.DirectoryListingRequest.getValue();
+        message[4] = (byte) MessageType.BlockRequest.getValue();
+        // Write the index of the piece the block belongs to
+        System.arraycopy(ByteAuxiliary.toByteArray(pieceIndex), 0, message, (offset += Integer.BYTES + 1), Short.BYTES);
+        // Write the offset of the block within the piece
+        System.arraycopy(ByteAuxiliary.toByteArray(blockOffset), 0, message, (offset += Short.BYTES), Integer.BYTES);
+        // Write the length of the block
+        System.arraycopy(ByteAuxiliary.toByteArray(blockLength), 0, message, (offset += Integer.BYTES), Integer.BYTES);
 
         return message;
     }
 
-    public static byte[] buildDirectoryListingReplyMessage(String fileNames) {
-        int offset = 0, length = 1 + fileNames.length();
+    public static byte[] buildBlockPackageHeader(short pieceIndex, int blockOffset, int dataLength) {
+        int offset = 0, length = 11;
 
         byte[] message = new byte[length];
+        // Write the size of message including the block that follows the header
+        System.arraycopy(ByteAuxiliary.toByteArray(length + dataLength), 0, message, offset, Integer.BYTES);
+        // Write the type of message
+        message[4] = (byte) MessageType.BlockPackage.getValue();
+        // Write the index of the piece the block belongs to
+        System.arraycopy(ByteAuxiliary.toByteArray(pieceIndex), 0, message, (offset += Integer.BYTES + 1), Short.BYTES);
+        // Write the offset of the block within the piece
+        System.arraycopy(ByteAuxiliary.toByteArray(blockOffset), 0, message, (offset += Short.BYTES), Integer.BYTES);
+
+        return message;
+    }
+
+    public static byte[] buildCancelMessage(short pieceIndex, int blockOffset, int blockLength) {
+        int offset = 0, length = 15;
+
+        byte[] message = new byte[length];
+        // Write the size of message
+        System.arraycopy(ByteAuxiliary.toByteArray(length), 0, message, offset, Integer.BYTES);
         // Write the type of message
-        message[0] = (byte) MessageType.DirectoryListingReply.getValue();
-        // Write the provided file names
-        System.arraycopy(ByteAuxiliary.toByteArray(fileNames), 0, message, (offset += 1), fileNames.length());
+        message[4] = (byte) MessageType.Cancel.getValue();
+        // Write the index of the piece the block belongs to
+        System.arraycopy(ByteAuxiliary.toByteArray(pieceIndex), 0, message, (offset += Integer.BYTES + 1), Short.BYTES);
+        // Write the offset of the block within the piece
+        System.arraycopy(ByteAuxiliary.toByteArray(blockOffset), 0, message, (offset += Short.BYTES), Integer.BYTES);
+        // Write the length of the block
+        System.arraycopy(ByteAuxiliary.toByteArray(blockLength), 0, message, (offset += Integer.BYTES), Integer.BYTES);
+
+        return message;
+    }
+
+    public static byte[] buildChokeMessage() {
+        return buildStateMessage(MessageType.Choke);
+    }
+
+    public static byte[] buildUnchokeMessage() {
+        return buildStateMessage(MessageType.Unchoke);
+    }
+
+    public static byte[] buildInterestedMessage() {
+        return buildStateMessage(MessageType.Interested);
+    }
+
+    public static byte[] buildNotInterestedMessage() {
+        return buildStateMessage(MessageType.NotInterested);
+    }
+
+    private static byte[] buildStateMessage(MessageType messageType) {
+        int offset = 0, length = 5;
+
+        byte[] message = new byte[length];
+        // Write the size of message
+        System.arraycopy(ByteAuxiliary.toByteArray(length), 0, message, offset, Integer.BYTES);
+        // Write the type of message, which is the only content
+        message[4] = (byte) messageType.getValue();
 
         return message;
     }
 
+    public static byte[] buildDirectoryListingRequestMessage(ListingMode mode, int count, String cursor, String query) {
+        byte[] encodedCursor = ByteAuxiliary.toByteArray(cursor + '\n');
+        byte[] encodedQuery = ByteAuxiliary.toByteArray(query);
+        int offset = 0, length = 2 + (2 * Integer.BYTES) + encodedCursor.length + encodedQuery.length;
+
+        byte[] message = new byte[length];
+        // Write the type of message, the transaction ID that follows is written by the tracker client
+        message[0] = (byte) MessageType.DirectoryListingRequest.getValue();
+        // Write the kind of listing
+        message[1 + Integer.BYTES] = (byte) mode.getValue();
+        // Write the number of files the client wants to receive
+        System.arraycopy(ByteAuxiliary.toByteArray(count), 0, message, (offset += 2 + Integer.BYTES), Integer.BYTES);
+        // Write the name the listing continues after, empty for the first page
+        System.arraycopy(encodedCursor, 0, message, (offset += Integer.BYTES), encodedCursor.length);
+        // Write the searched text, which takes the rest of the message
+        System.arraycopy(encodedQuery, 0, message, (offset += encodedCursor.length), encodedQuery.length);
+
+        return message;
+    }
+
+    public static void buildDirectoryListingReplyMessage(int transactionID, String cursor, ArrayList<byte[]> fileNames, ByteBuffer buffer) {
+        buffer.clear();
+        // Write the type of message
+        buffer.put((byte) MessageType.DirectoryListingReply.getValue());
+        // Write the transaction ID of the request
+        buffer.putInt(transactionID);
+        // Write the name the next page starts after, empty once the listing is complete
+        buffer.put(ByteAuxiliary.toByteArray(cursor + '\n'));
+
+        // Write the file names, the tracker has picked as many as fit into the datagram
+        for (byte[] fileName : fileNames) {
+            buffer.put((byte) '\t');
+            buffer.put(fileName);
+            buffer.put((byte) '\n');
+        }
+
+        buffer.flip();
+    }
+
     public static byte[] buildAnnounceRequestMessage(UUID peerID, FileInfo fileInfo) {
         int fileInfoLength = FileInfo.BYTES + (fileInfo.fileName.length() * Byte.BYTES) + (fileInfo.pieceHashes.length * FileInfo.SHA_1.getDigestLength());
-        int offset = 0, length = 2 + (2 * Long.BYTES) + fileInfoLength;
+        int offset = 0, length = 2 + Integer.BYTES + (2 * Long.BYTES) + fileInfoLength;
 
         byte[] message = new byte[length];
-        // Write the type of message
+        // Write the type of message, the transaction ID that follows is written by the tracker client
         message[0] = (byte) MessageType.AnnounceRequest.getValue();
         // Write the peer ID
-        System.arraycopy(ByteAuxiliary.toByteArray(peerID), 0, message, (offset += 1), (2 * Long.BYTES));
+        System.arraycopy(ByteAuxiliary.toByteArray(peerID), 0, message, (offset += 1 + Integer.BYTES), (2 * Long.BYTES));
         // Write the converted earlier to byte array file info
         System.arraycopy(ByteAuxiliary.toByteArray(fileInfo), 0, message, (offset += (2 * Long.BYTES)), (fileInfoLength + 1));
 
         return message;
     }
 
-    public static byte[] buildAnnounceReplyMessage(int status) {
-        int length = 2;
-
-        byte[] message = new byte[length];
+    public static void buildAnnounceReplyMessage(int transactionID, int status, int interval, ByteBuffer buffer) {
+        buffer.clear();
         // Write the type of message
-        message[0] = (byte) MessageType.AnnounceReply.getValue();
+        buffer.put((byte) MessageType.AnnounceReply.getValue());
+        // Write the transaction ID of the request
+        buffer.putInt(transactionID);
         // Write the status of the announce request
-        message[1] = (byte) status;
-
-        return message;
+        buffer.put((byte) status);
+        // Write the interval of heartbeats in seconds
+        buffer.putInt(interval);
+        buffer.flip();
     }
 
-    public static byte[] buildConnectRequestMessage(UUID peerID, String fileName) {
-        int offset = 0, length = 1 + (2 * Long.BYTES) + (fileName.length() + 1);
+    public static byte[] buildConnectRequestMessage(UUID peerID, int peersWanted, String fileName) {
+        int offset = 0, length = 1 + Integer.BYTES + (2 * Long.BYTES) + Integer.BYTES + (fileName.length() + 1);
 
         byte[] message = new byte[length];
-        // Write the type of message
+        // Write the type of message, the transaction ID that follows is written by the tracker client
         message[0] = (byte) MessageType.ConnectRequest.getValue();
         // Write the peerID
-        System.arraycopy(ByteAuxiliary.toByteArray(peerID), 0, message, (offset += 1), (2 * Long.BYTES));
+        System.arraycopy(ByteAuxiliary.toByteArray(peerID), 0, message, (offset += 1 + Integer.BYTES), (2 * Long.BYTES));
+        // Write the number of peers the client wants to receive
+        System.arraycopy(ByteAuxiliary.toByteArray(peersWanted), 0, message, (offset += (2 * Long.BYTES)), Integer.BYTES);
         // Write the file name
-        System.arraycopy(ByteAuxiliary.toByteArray(fileName + '\n'), 0, message, (offset += (2 * Long.BYTES)), fileName.length() + 1);
+        System.arraycopy(ByteAuxiliary.toByteArray(fileName + '\n'), 0, message, (offset += Integer.BYTES), fileName.length() + 1);
 
         return message;
     }
 
-    public static byte[] buildConnectReplyMessage(int status, FileInfo fileInfo, ArrayList<PeerInfo> peersInfo) {
-        int fileInfoLength = (fileInfo != null) ? FileInfo.BYTES + (fileInfo.fileName.length() * Byte.BYTES) + (fileInfo.pieceHashes.length * FileInfo.SHA_1.getDigestLength()) : 0;
-        int offset = 0, length = 2 + ((peersInfo != null) ? (PeerInfo.BYTES * peersInfo.size()) + fileInfoLength + 1 : 0);
-
-        byte[] message = new byte[length];
+    public static void buildConnectReplyMessage(int transactionID, int status, int interval, FileInfo fileInfo, ArrayList<PeerInfo> peersInfo, ByteBuffer buffer) {
+        buffer.clear();
         // Write the type of message
-        message[0] = (byte) MessageType.ConnectReply.getValue();
+        buffer.put((byte) MessageType.ConnectReply.getValue());
+        // Write the transaction ID of the request
+        buffer.putInt(transactionID);
         // Write the status of the connect request
-        message[1] = (byte) status;
+        buffer.put((byte) status);
+        // Write the interval of heartbeats in seconds
+        buffer.putInt(interval);
 
         if (peersInfo != null) {
             // Write information about the file
-            System.arraycopy(ByteAuxiliary.toByteArray(fileInfo), 0, message, (offset += 2), (fileInfoLength + 1));
-            offset += (fileInfoLength + 1);
+            ByteAuxiliary.writeFileInfo(buffer, fileInfo);
 
-            // Write information about all peers currently uploading / downloading the file
+            // Write information about the peers currently uploading / downloading the file, as many as fit
             for (PeerInfo peerInfo : peersInfo) {
-                System.arraycopy(ByteAuxiliary.toByteArray(peerInfo), 0, message, offset, PeerInfo.BYTES);
-                offset += PeerInfo.BYTES;
+                if (buffer.remaining() < PeerInfo.BYTES) {
+                    break;
+                }
+
+                ByteAuxiliary.writePeerInfo(buffer, peerInfo);
             }
         }
 
-        return message;
+        buffer.flip();
     }
 
     public static byte[] buildExitMessage(UUID peerID) {
@@ -177,4 +279,29 @@ public class MessageBuilder {
 
         return message;
     }
-}
\ No newline at end of file
+
+    public static byte[] buildHeartbeatMessage(UUID peerID) {
+        int length = 1 + Integer.BYTES + (2 * Long.BYTES);
+
+        byte[] message = new byte[length];
+        // Write the type of message, the transaction ID that follows is written by the tracker client
+        message[0] = (byte) MessageType.Heartbeat.getValue();
+        // Write the peer ID
+        System.arraycopy(ByteAuxiliary.toByteArray(peerID), 0, message, 1 + Integer.BYTES, (2 * Long.BYTES));
+
+        return message;
+    }
+
+    public static void buildHeartbeatReplyMessage(int transactionID, int status, int interval, ByteBuffer buffer) {
+        buffer.clear();
+        // Write the type of message
+        buffer.put((byte) MessageType.HeartbeatReply.getValue());
+        // Write the transaction ID of the request
+        buffer.putInt(transactionID);
+        // Write whether the peer is still tracked
+        buffer.put((byte) status);
+        // Write the interval of heartbeats in seconds
+        buffer.putInt(interval);
+        buffer.flip();
+    }
+}
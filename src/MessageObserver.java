@@ -1,5 +1,5 @@
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.BitSet;
 import java.util.UUID;
 
@@ -16,167 +16,277 @@ public class MessageObserver {
     }
 
     public void handleMessage(UUID someID, byte[] message) {
-        MessageType messageType = extractMessageType(message);
+        handleMessage(someID, ByteBuffer.wrap(message));
+    }
 
-        // Remove from the message type field and pass to the next handler
-        byte[] newMessage = new byte[message.length - 1];
-        System.arraycopy(message, 1, newMessage, 0, newMessage.length);
+    public void handleMessage(UUID someID, ByteBuffer message) {
+        // Consume the message type field and pass the rest to the next handler
+        MessageType messageType = extractMessageType(message);
 
         switch (messageType) {
             case Handshake:
-                handleHandshakeMessage(someID, newMessage);
+                handleHandshakeMessage(someID, message);
                 break;
             case AvailablePieces:
-                handleAvailablePiecesMessage(someID, newMessage);
+                handleAvailablePiecesMessage(someID, message);
                 break;
             case DataRequest:
-                handleDataRequestMessage(someID, newMessage);
+                handleDataRequestMessage(someID, message);
                 break;
             case DataPackage:
-                handleDataPackageMessage(someID, newMessage);
+                handleDataPackageMessage(someID, message);
                 break;
             case PieceUpdate:
-                handlePieceUpdateMessage(someID, newMessage);
-                break;
-            case DirectoryListingRequest:
-                handleDirectoryListingRequestMessage(someID, newMessage);
+                handlePieceUpdateMessage(someID, message);
                 break;
             case DirectoryListingReply:
-                handleDirectoryListingReplyMessage(someID, newMessage);
-                break;
-            case AnnounceRequest:
-                handleAnnounceRequestMessage(someID, newMessage);
+                handleDirectoryListingReplyMessage(someID, message);
                 break;
             case AnnounceReply:
-                handleAnnounceReplyMessage(someID, newMessage);
-                break;
-            case ConnectRequest:
-                handleConnectRequestMessage(someID, newMessage);
+                handleAnnounceReplyMessage(someID, message);
                 break;
             case ConnectReply:
-                handleConnectReplyMessage(someID, newMessage);
+                handleConnectReplyMessage(someID, message);
                 break;
-            case Exit:
-                handleExitMessage(someID, newMessage);
+            case HeartbeatReply:
+                handleHeartbeatReplyMessage(someID, message);
+                break;
+            case BlockRequest:
+                handleBlockRequestMessage(someID, message);
+                break;
+            case BlockPackage:
+                handleBlockPackageMessage(someID, message);
+                break;
+            case Cancel:
+                handleCancelMessage(someID, message);
+                break;
+            case Choke:
+                clientHandler.handleChokeMessage(someID);
+                break;
+            case Unchoke:
+                clientHandler.handleUnchokeMessage(someID);
+                break;
+            case Interested:
+                clientHandler.handleInterestedMessage(someID);
+                break;
+            case NotInterested:
+                clientHandler.handleNotInterestedMessage(someID);
                 break;
         }
     }
 
-    private void handleHandshakeMessage(UUID peerID, byte[] message) {
-        int offset = 0;
+    public void handleRequest(RequestContext context, ByteBuffer message) {
+        // Requests to the tracker carry the context of the reply instead of an ID
+        MessageType messageType = extractMessageType(message);
+
+        switch (messageType) {
+            case DirectoryListingRequest:
+                handleDirectoryListingRequestMessage(context, message);
+                break;
+            case AnnounceRequest:
+                handleAnnounceRequestMessage(context, message);
+                break;
+            case ConnectRequest:
+                handleConnectRequestMessage(context, message);
+                break;
+            case Exit:
+                handleExitMessage(context, message);
+                break;
+            case Heartbeat:
+                handleHeartbeatMessage(context, message);
+                break;
+        }
+    }
 
+    private void handleHandshakeMessage(UUID peerID, ByteBuffer message) {
         // Recover the file info hash reported by the peer
-        byte[] fileInfoHash = Arrays.copyOfRange(message, offset, (offset += FileInfo.SHA_1.getDigestLength()));
+        byte[] fileInfoHash = new byte[FileInfo.SHA_1.getDigestLength()];
+        message.get(fileInfoHash);
         // Recover the peerID reported by the peer
-        UUID realPeerID = ByteAuxiliary.recoverUUID(Arrays.copyOfRange(message, offset, (offset = message.length)));
+        UUID realPeerID = ByteAuxiliary.recoverUUID(message);
 
         clientHandler.handleHandshakeMessage(peerID, realPeerID, fileInfoHash);
     }
 
-    private void handleAvailablePiecesMessage(UUID peerID, byte[] message) {
+    private void handleAvailablePiecesMessage(UUID peerID, ByteBuffer message) {
         // Recover the availablePieces reported by the peer
         BitSet availablePieces = ByteAuxiliary.recoverBitSet(message);
 
         clientHandler.handleAvailablePiecesMessage(peerID, availablePieces);
     }
 
-    private void handleDataRequestMessage(UUID peerID, byte[] message) {
+    private void handleDataRequestMessage(UUID peerID, ByteBuffer message) {
         // Recover the index of requested piece
-        short pieceIndex = ByteAuxiliary.recoverShort(message);
+        short pieceIndex = message.getShort();
 
         clientHandler.handleDataRequestMessage(peerID, pieceIndex);
     }
 
-    private void handleDataPackageMessage(UUID peerID, byte[] message) {
-        int offset = 0;
-
+    private void handleDataPackageMessage(UUID peerID, ByteBuffer message) {
         // Recover the index of received piece
-        short pieceIndex = ByteAuxiliary.recoverShort(Arrays.copyOfRange(message, offset, (offset += Short.BYTES)));
-        // Recover the piece
-        byte[] data = Arrays.copyOfRange(message, offset, (offset = message.length));
+        short pieceIndex = message.getShort();
+        // Recover the piece, which is the only copy made on the read path
+        byte[] data = new byte[message.remaining()];
+        message.get(data);
 
         clientHandler.handleDataPackageMessage(peerID, pieceIndex, data);
     }
 
-    private void handlePieceUpdateMessage(UUID peerID, byte[] message) {
+    private void handlePieceUpdateMessage(UUID peerID, ByteBuffer message) {
         // Recover the index of updated piece
-        short pieceIndex = ByteAuxiliary.recoverShort(message);
+        short pieceIndex = message.getShort();
 
         clientHandler.handlePieceUpdateMessage(peerID, pieceIndex);
     }
 
-    private void handleDirectoryListingRequestMessage(UUID packetID, byte[] message) {
-        serverHandler.handleDirectoryListingRequestMessage(packetID);
+    private void handleBlockRequestMessage(UUID peerID, ByteBuffer message) {
+        // Recover the index of the piece
+        short pieceIndex = message.getShort();
+        // Recover the offset of requested block
+        int offset = message.getInt();
+        // Recover the length of requested block
+        int length = message.getInt();
+
+        clientHandler.handleBlockRequestMessage(peerID, pieceIndex, offset, length);
     }
 
-    private void handleDirectoryListingReplyMessage(UUID trackerID, byte[] message) {
-        // Recover the directory listing
-        String directoryListing = ByteAuxiliary.recoverString(message);
+    private void handleBlockPackageMessage(UUID peerID, ByteBuffer message) {
+        // Recover the index of the piece
+        short pieceIndex = message.getShort();
+        // Recover the offset of received block
+        int offset = message.getInt();
+        // Recover the block
+        byte[] data = new byte[message.remaining()];
+        message.get(data);
 
-        clientHandler.handleDirectoryListingReplyMessage(trackerID, directoryListing);
+        clientHandler.handleBlockPackageMessage(peerID, pieceIndex, offset, data);
     }
 
-    private void handleAnnounceRequestMessage(UUID packetID, byte[] message) {
-        int offset = 0;
+    private void handleCancelMessage(UUID peerID, ByteBuffer message) {
+        // Recover the index of the piece
+        short pieceIndex = message.getShort();
+        // Recover the offset of cancelled block
+        int offset = message.getInt();
+        // Recover the length of cancelled block
+        int length = message.getInt();
 
+        clientHandler.handleCancelMessage(peerID, pieceIndex, offset, length);
+    }
+
+    private void handleDirectoryListingRequestMessage(RequestContext context, ByteBuffer message) {
+        // Recover the transaction ID, which is echoed in the reply
+        context.transactionID = message.getInt();
+        // Recover the kind of listing
+        ListingMode mode = ListingMode.fromInteger(message.get());
+        // Recover the number of files wanted
+        int count = message.getInt();
+        // Recover the name the listing continues after
+        String cursor = ByteAuxiliary.recoverLine(message);
+        // Recover the searched text
+        String query = ByteAuxiliary.recoverString(message, message.remaining());
+
+        serverHandler.handleDirectoryListingRequestMessage(context, mode, count, cursor, query);
+    }
+
+    private void handleDirectoryListingReplyMessage(UUID trackerID, ByteBuffer message) {
+        // Skip the transaction ID, the reply has been matched to its request already
+        message.getInt();
+        // Recover the name the next page starts after
+        String cursor = ByteAuxiliary.recoverLine(message);
+        // Recover the directory listing
+        String directoryListing = ByteAuxiliary.recoverString(message, message.remaining());
+
+        clientHandler.handleDirectoryListingReplyMessage(trackerID, cursor, directoryListing);
+    }
+
+    private void handleAnnounceRequestMessage(RequestContext context, ByteBuffer message) {
+        // Recover the transaction ID, which is echoed in the reply
+        context.transactionID = message.getInt();
         // Recover the peer ID
-        UUID peerID = ByteAuxiliary.recoverUUID(Arrays.copyOfRange(message, offset, (offset += (2 * Long.BYTES))));
+        UUID peerID = ByteAuxiliary.recoverUUID(message);
         // Recover the file info
-        FileInfo fileInfo = ByteAuxiliary.recoverFileInfo(Arrays.copyOfRange(message, offset, message.length));
+        FileInfo fileInfo = ByteAuxiliary.recoverFileInfo(message);
 
-        serverHandler.handleAnnounceRequestMessage(packetID, peerID, fileInfo);
+        serverHandler.handleAnnounceRequestMessage(context, peerID, fileInfo);
     }
 
-    private void handleAnnounceReplyMessage(UUID trackerID, byte[] message) {
+    private void handleAnnounceReplyMessage(UUID trackerID, ByteBuffer message) {
+        // Skip the transaction ID, the reply has been matched to its request already
+        message.getInt();
         // Recover the status of the announcement request
-        int status = message[0];
+        int status = message.get();
+        // Recover the heartbeat interval suggested by the tracker
+        int interval = message.getInt();
 
-        clientHandler.handleAnnounceReplyMessage(trackerID, status);
+        clientHandler.handleAnnounceReplyMessage(trackerID, status, interval);
     }
 
-    private void handleConnectRequestMessage(UUID packetID, byte[] message) {
-        int offset = 0;
-
+    private void handleConnectRequestMessage(RequestContext context, ByteBuffer message) {
+        // Recover the transaction ID, which is echoed in the reply
+        context.transactionID = message.getInt();
         // Recover the peerID
-        UUID peerID = ByteAuxiliary.recoverUUID(Arrays.copyOfRange(message, offset, (offset += (2 * Long.BYTES))));
+        UUID peerID = ByteAuxiliary.recoverUUID(message);
+        // Recover the number of peers wanted
+        int peersWanted = message.getInt();
         // Recover the file name
-        String fileName = ByteAuxiliary.recoverString(Arrays.copyOfRange(message, offset, (message.length - 1)));
+        String fileName = ByteAuxiliary.recoverString(message, (message.remaining() - 1));
 
-        serverHandler.handleConnectRequestMessage(packetID, peerID, fileName);
+        serverHandler.handleConnectRequestMessage(context, peerID, peersWanted, fileName);
     }
 
-    private void handleConnectReplyMessage(UUID trackerID, byte[] message) {
-        int offset = 0;
-
+    private void handleConnectReplyMessage(UUID trackerID, ByteBuffer message) {
+        // Skip the transaction ID, the reply has been matched to its request already
+        message.getInt();
         // Recover the status of the connection request
-        int status = message[0];
+        int status = message.get();
+        // Recover the heartbeat interval suggested by the tracker
+        int interval = message.getInt();
 
         ArrayList<PeerInfo> peersInfo = null;
         FileInfo fileInfo = null;
-        if (message.length > 1) {
+        if (message.hasRemaining()) {
             // Recover the file info
-            fileInfo = ByteAuxiliary.recoverFileInfo(Arrays.copyOfRange(message, (offset += 1), message.length));
-            offset += FileInfo.BYTES + (fileInfo.fileName.length() * Byte.BYTES) + (fileInfo.pieceHashes.length * FileInfo.SHA_1.getDigestLength()) + 1;
+            fileInfo = ByteAuxiliary.recoverFileInfo(message);
 
             // Recover the list of peers in the swarm
             peersInfo = new ArrayList<>();
-            while (offset < message.length){
-                PeerInfo peerInfo = ByteAuxiliary.recoverPeerInfo(Arrays.copyOfRange(message, offset, (offset += PeerInfo.BYTES)));
+            while (message.remaining() >= PeerInfo.BYTES) {
+                PeerInfo peerInfo = ByteAuxiliary.recoverPeerInfo(message);
                 peersInfo.add(peerInfo);
             }
         }
 
-        clientHandler.handleConnectReplyMessage(trackerID, status, fileInfo, peersInfo);
+        clientHandler.handleConnectReplyMessage(trackerID, status, interval, fileInfo, peersInfo);
     }
 
-    private void handleExitMessage(UUID packetID, byte[] message) {
+    private void handleExitMessage(RequestContext context, ByteBuffer message) {
         // Recover the peer ID
         UUID peerID = ByteAuxiliary.recoverUUID(message);
 
-        serverHandler.handleExitMessage(packetID, peerID);
+        serverHandler.handleExitMessage(context, peerID);
+    }
+
+    private void handleHeartbeatMessage(RequestContext context, ByteBuffer message) {
+        // Recover the transaction ID, which is echoed in the reply
+        context.transactionID = message.getInt();
+        // Recover the peer ID
+        UUID peerID = ByteAuxiliary.recoverUUID(message);
+
+        serverHandler.handleHeartbeatMessage(context, peerID);
+    }
+
+    private void handleHeartbeatReplyMessage(UUID trackerID, ByteBuffer message) {
+        // Skip the transaction ID, the reply has been matched to its request already
+        message.getInt();
+        // Recover whether the peer is still tracked
+        int status = message.get();
+        // Recover the heartbeat interval suggested by the tracker
+        int interval = message.getInt();
+
+        clientHandler.handleHeartbeatReplyMessage(trackerID, status, interval);
     }
 
-    private MessageType extractMessageType(byte[] message) {
-        return MessageType.fromInteger(message[0]);
+    private MessageType extractMessageType(ByteBuffer message) {
+        return MessageType.fromInteger(message.get());
     }
 }
@@ -10,7 +10,16 @@ public enum MessageType {
     AnnounceReply(8),
     ConnectRequest(9),
     ConnectReply(10),
-    Exit(11);
+    Exit(11),
+    BlockRequest(12),
+    BlockPackage(13),
+    Cancel(14),
+    Choke(15),
+    Unchoke(16),
+    Interested(17),
+    NotInterested(18),
+    Heartbeat(19),
+    HeartbeatReply(20);
 
     private int value;
     MessageType(int value) {
@@ -47,6 +56,24 @@ public enum MessageType {
                 return ConnectReply;
             case 11:
                 return Exit;
+            case 12:
+                return BlockRequest;
+            case 13:
+                return BlockPackage;
+            case 14:
+                return Cancel;
+            case 15:
+                return Choke;
+            case 16:
+                return Unchoke;
+            case 17:
+                return Interested;
+            case 18:
+                return NotInterested;
+            case 19:
+                return Heartbeat;
+            case 20:
+                return HeartbeatReply;
         }
         return null;
     }
@@ -0,0 +1,189 @@
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Metrics implements IMetricsMXBean {
+    private static final String DOMAIN = "CS3103";
+
+    // Totals of the whole client, every other scope adds up into it
+    public static final Metrics CLIENT = new Metrics(null);
+
+    private final Metrics parent;
+    private ObjectName objectName;
+
+    // Counters are updated on every message, so they must not contend
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder blocksRequested = new LongAdder();
+    private final LongAdder blocksReceived = new LongAdder();
+    private final LongAdder requestTimeouts = new LongAdder();
+    private final LongAdder piecesReceived = new LongAdder();
+    private final LongAdder hashFailures = new LongAdder();
+    private final LongAdder roundTripTime = new LongAdder();
+    private final LongAdder roundTripTimeSamples = new LongAdder();
+    private final LongAdder queueDepth = new LongAdder();
+    private final LongAdder hashTime = new LongAdder();
+    private final LongAdder diskWriteTime = new LongAdder();
+
+    public Metrics(Metrics parent) {
+        this.parent = parent;
+    }
+
+    public void recordBytesIn(long bytes) {
+        for (Metrics metrics = this; metrics != null; metrics = metrics.parent) {
+            metrics.bytesIn.add(bytes);
+        }
+    }
+
+    public void recordBytesOut(long bytes) {
+        for (Metrics metrics = this; metrics != null; metrics = metrics.parent) {
+            metrics.bytesOut.add(bytes);
+        }
+    }
+
+    public void recordBlockRequested() {
+        for (Metrics metrics = this; metrics != null; metrics = metrics.parent) {
+            metrics.blocksRequested.increment();
+        }
+    }
+
+    public void recordBlockReceived() {
+        for (Metrics metrics = this; metrics != null; metrics = metrics.parent) {
+            metrics.blocksReceived.increment();
+        }
+    }
+
+    public void recordRequestTimeout() {
+        for (Metrics metrics = this; metrics != null; metrics = metrics.parent) {
+            metrics.requestTimeouts.increment();
+        }
+    }
+
+    public void recordPieceReceived() {
+        for (Metrics metrics = this; metrics != null; metrics = metrics.parent) {
+            metrics.piecesReceived.increment();
+        }
+    }
+
+    public void recordHashFailure() {
+        for (Metrics metrics = this; metrics != null; metrics = metrics.parent) {
+            metrics.hashFailures.increment();
+        }
+    }
+
+    public void recordRoundTripTime(long nanos) {
+        for (Metrics metrics = this; metrics != null; metrics = metrics.parent) {
+            metrics.roundTripTime.add(nanos);
+            metrics.roundTripTimeSamples.increment();
+        }
+    }
+
+    public void updateQueueDepth(int delta) {
+        for (Metrics metrics = this; metrics != null; metrics = metrics.parent) {
+            metrics.queueDepth.add(delta);
+        }
+    }
+
+    public void recordHashTime(long nanos) {
+        for (Metrics metrics = this; metrics != null; metrics = metrics.parent) {
+            metrics.hashTime.add(nanos);
+        }
+    }
+
+    public void recordDiskWriteTime(long nanos) {
+        for (Metrics metrics = this; metrics != null; metrics = metrics.parent) {
+            metrics.diskWriteTime.add(nanos);
+        }
+    }
+
+    public synchronized void register(String type, String name) {
+        unregister();
+
+        try {
+            String objectName = "type=" + type + (name != null ? ",name=" + ObjectName.quote(name) : "");
+            this.objectName = new ObjectName(DOMAIN + ":" + objectName);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, this.objectName);
+        } catch (Exception e) {
+            System.err.println("Can not register the metrics of the " + type + " " + name);
+            this.objectName = null;
+        }
+    }
+
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (Exception e) {
+            System.err.println("Can not unregister the metrics " + objectName);
+        }
+
+        objectName = null;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getBlocksRequested() {
+        return blocksRequested.sum();
+    }
+
+    @Override
+    public long getBlocksReceived() {
+        return blocksReceived.sum();
+    }
+
+    @Override
+    public long getRequestTimeouts() {
+        return requestTimeouts.sum();
+    }
+
+    @Override
+    public long getPiecesReceived() {
+        return piecesReceived.sum();
+    }
+
+    @Override
+    public long getHashFailures() {
+        return hashFailures.sum();
+    }
+
+    @Override
+    public double getAverageRoundTripTime() {
+        // In milliseconds
+        long samples = roundTripTimeSamples.sum();
+        return samples == 0 ? 0 : toMillis(roundTripTime.sum()) / samples;
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return queueDepth.sum();
+    }
+
+    @Override
+    public double getHashTime() {
+        // In milliseconds
+        return toMillis(hashTime.sum());
+    }
+
+    @Override
+    public double getDiskWriteTime() {
+        // In milliseconds
+        return toMillis(diskWriteTime.sum());
+    }
+
+    private static double toMillis(long nanos) {
+        return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
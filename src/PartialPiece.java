@@ -0,0 +1,151 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.UUID;
+
+public class PartialPiece {
+    public static final int BLOCK_SIZE = 16384;
+
+    public final short pieceIndex;
+    public final byte[] data;
+
+    private final int blockCount;
+    private final BitSet receivedBlocks;
+    private final int[] requestCounts;
+    private final ArrayList<BlockRequest> requests;
+
+    public PartialPiece(short pieceIndex, int pieceSize) {
+        this.pieceIndex = pieceIndex;
+        this.data = new byte[pieceSize];
+        this.blockCount = (pieceSize + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        this.receivedBlocks = new BitSet(blockCount);
+        this.requestCounts = new int[blockCount];
+        this.requests = new ArrayList<>();
+    }
+
+    public int nextBlockToRequest() {
+        for (int i = receivedBlocks.nextClearBit(0); i < blockCount; i = receivedBlocks.nextClearBit(i + 1)) {
+            if (requestCounts[i] == 0) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    public int nextEndgameBlock(UUID peerID, int maximumRequests) {
+        // Duplicate requests of missing blocks, but never to the same peer twice
+        for (int i = receivedBlocks.nextClearBit(0); i < blockCount; i = receivedBlocks.nextClearBit(i + 1)) {
+            if (requestCounts[i] < maximumRequests && !isRequestedFrom(i, peerID)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    public void markRequested(int blockIndex, UUID peerID) {
+        requestCounts[blockIndex]++;
+        requests.add(new BlockRequest(peerID, pieceIndex, getBlockOffset(blockIndex), getBlockLength(blockIndex)));
+    }
+
+    public boolean addBlock(int offset, byte[] block) {
+        // Accept only whole blocks at the expected boundaries
+        if (offset < 0 || offset % BLOCK_SIZE != 0 || offset >= data.length) {
+            return false;
+        }
+
+        int blockIndex = offset / BLOCK_SIZE;
+        if (block.length != getBlockLength(blockIndex) || receivedBlocks.get(blockIndex)) {
+            return false;
+        }
+
+        System.arraycopy(block, 0, data, offset, block.length);
+        receivedBlocks.set(blockIndex);
+
+        return true;
+    }
+
+    public ArrayList<BlockRequest> removeRequests(int offset) {
+        // Take every request of the block, including duplicates sent in endgame
+        ArrayList<BlockRequest> removedRequests = new ArrayList<>();
+
+        Iterator<BlockRequest> iterator = requests.iterator();
+        while (iterator.hasNext()) {
+            BlockRequest request = iterator.next();
+            if (request.offset == offset) {
+                iterator.remove();
+                removedRequests.add(request);
+            }
+        }
+
+        requestCounts[offset / BLOCK_SIZE] = 0;
+        return removedRequests;
+    }
+
+    public void releaseBlocks(UUID peerID) {
+        // Make the blocks requested from a dropped peer available for others
+        Iterator<BlockRequest> iterator = requests.iterator();
+        while (iterator.hasNext()) {
+            BlockRequest request = iterator.next();
+            if (request.peerID.equals(peerID)) {
+                iterator.remove();
+                requestCounts[request.offset / BLOCK_SIZE]--;
+            }
+        }
+    }
+
+    public ArrayList<BlockRequest> removeExpiredRequests(CommunicationMediator mediator, long now) {
+        ArrayList<BlockRequest> expiredRequests = new ArrayList<>();
+
+        Iterator<BlockRequest> iterator = requests.iterator();
+        while (iterator.hasNext()) {
+            BlockRequest request = iterator.next();
+
+            // Every peer has its own timeout derived from its round trip time
+            Peer peer = mediator.askForPeer(request.peerID);
+            if (peer == null || now - request.requestTime > peer.getRequestTimeout()) {
+                iterator.remove();
+                requestCounts[request.offset / BLOCK_SIZE]--;
+
+                if (peer != null) {
+                    expiredRequests.add(request);
+                }
+            }
+        }
+
+        return expiredRequests;
+    }
+
+    public boolean isRequested(int blockIndex) {
+        return requestCounts[blockIndex] > 0;
+    }
+
+    public boolean isComplete() {
+        return receivedBlocks.cardinality() == blockCount;
+    }
+
+    public int getMissingBlockCount() {
+        return blockCount - receivedBlocks.cardinality();
+    }
+
+    public int getBlockOffset(int blockIndex) {
+        return blockIndex * BLOCK_SIZE;
+    }
+
+    public int getBlockLength(int blockIndex) {
+        return Math.min(BLOCK_SIZE, data.length - getBlockOffset(blockIndex));
+    }
+
+    private boolean isRequestedFrom(int blockIndex, UUID peerID) {
+        int offset = getBlockOffset(blockIndex);
+
+        for (BlockRequest request : requests) {
+            if (request.offset == offset && request.peerID.equals(peerID)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -1,35 +1,61 @@
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
-import java.util.Arrays;
 import java.util.BitSet;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 public class Peer {
     private static final int BUFFER_SIZE = 1024;
 
+    private static final int INITIAL_REQUEST_WINDOW = 4;
+    private static final int MAXIMUM_REQUEST_WINDOW = 64;
+    private static final long INITIAL_REQUEST_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+    private static final long MINIMUM_REQUEST_TIMEOUT = TimeUnit.SECONDS.toNanos(2);
+    private static final long MAXIMUM_REQUEST_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+
     private CommunicationMediator mediator;
     private MessageObserver observer;
     private AsynchronousSocketChannel socketChannel = null;
     private InetSocketAddress socketAddress;
-    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-    private ByteArrayOutputStream data = new ByteArrayOutputStream();
+    private FrameDecoder decoder;
+    private volatile WriteQueue writeQueue;
+    private final Metrics metrics;
+
+    // Bandwidth limits of this peer, applied on top of the global ones
+    private final TokenBucket uploadBucket = new TokenBucket(TokenBucket.PEER_UPLOAD_LIMIT);
+    private final TokenBucket downloadBucket = new TokenBucket(TokenBucket.PEER_DOWNLOAD_LIMIT);
 
     private UUID peerID;
     private BitSet availablePieces;
-    private BitSet requestedPieces;
+    private int outstandingBlocks;
+
+    // Adaptive request window and round trip estimates, in nanoseconds
+    private double requestWindow = INITIAL_REQUEST_WINDOW;
+    private long smoothedRoundTripTime = -1;
+    private long roundTripTimeVariance = 0;
+
+    // Choking state of both directions, every connection starts choked and not interested
+    private volatile boolean isChoking = true;
+    private volatile boolean isInterested = false;
+    private volatile boolean isPeerChoking = true;
+    private volatile boolean isPeerInterested = false;
+
+    // Payload bytes moved since the last rechoke round and the resulting rate in bytes per second
+    private long downloadedBytes;
+    private long uploadedBytes;
+    private long transferRate;
 
     public Peer(PeerInfo peerInfo, CommunicationMediator mediator, MessageObserver observer) {
         this.peerID = peerInfo.peerID;
         this.mediator = mediator;
         this.observer = observer;
         this.availablePieces = new BitSet();
-        this.requestedPieces = new BitSet();
         this.socketAddress = new InetSocketAddress(peerInfo.inetAddress, peerInfo.port);
+        this.metrics = new Metrics(mediator.askForSwarmMetrics());
 
         mediator.registerPeer(this);
     }
@@ -39,9 +65,9 @@ public class Peer {
         this.mediator = mediator;
         this.observer = observer;
         this.availablePieces = new BitSet();
-        this.requestedPieces = new BitSet();
         this.socketChannel = socketChannel;
         this.socketAddress = null;
+        this.metrics = new Metrics(mediator.askForSwarmMetrics());
 
         mediator.registerPeer(this);
     }
@@ -53,46 +79,76 @@ public class Peer {
                 socketChannel.connect(socketAddress).get();
             } catch (Exception e) {
                 System.err.println("Can't connect to a peer with the following ID: " + peerID.toString());
+
+                // Forget the unreachable peer, nothing can be sent to it
+                disconnect();
                 return;
             }
         }
 
-        socketChannel.read(buffer, null, new CompletionHandler<Integer, Void>() {
+        // The pooled read buffer is taken only for a connected channel, so an unreachable peer holds none
+        decoder = new FrameDecoder(BUFFER_SIZE);
+        writeQueue = new WriteQueue(socketChannel, uploadBucket, metrics);
+        metrics.register("Peer", peerID.toString());
+
+        socketChannel.read(decoder.getReadBuffer(), null, new CompletionHandler<Integer, Void>() {
             @Override
             public void completed(Integer length, Void attachment) {
                 // Check whether the peer has disconnected
                 if (length < 1) {
+                    decoder.release();
                     disconnect();
                     return;
                 }
 
-                // Put bytes into the global buffer
-                data.write(buffer.array(), 0, length);
+                metrics.recordBytesIn(length);
 
-                // Extract size of the received message
-                int messageLength = extractMessageSize(data.toByteArray());
-                int dataLength;
+                try {
+                    // Process every complete message, each slice is valid only until the next read
+                    ByteBuffer message;
+                    while (socketChannel.isOpen() && (message = decoder.nextFrame()) != null) {
+                        observer.handleMessage(peerID, message);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // A short frame or an unknown type must not stop the reads without dropping the peer
+                    System.err.println("Received a malformed message from a peer with the following ID: " + peerID.toString());
+                    decoder.release();
+                    disconnect();
+                    return;
+                }
 
-                while ((dataLength = data.size()) >= messageLength) {
-                    // Process the message
-                    byte[] message = data.toByteArray();
-                    observer.handleMessage(peerID, Arrays.copyOfRange(message, 4, messageLength));
+                // A handler has dropped the peer, no further read is issued
+                if (!socketChannel.isOpen()) {
+                    decoder.release();
+                    return;
+                }
 
-                    // Reset the buffer and write back everything that left to process
-                    // Warning! Possible bug
-                    data.reset();
-                    data.write(message, messageLength, (dataLength - messageLength));
+                // Postpone the next read while the download limits are exceeded, the sender is slowed down by TCP
+                long delay = TokenBucket.reserve(length, TokenBucket.GLOBAL_DOWNLOAD, downloadBucket);
+                if (delay > 0) {
+                    final CompletionHandler<Integer, Void> readHandler = this;
+                    TokenBucket.TIMER.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!socketChannel.isOpen()) {
+                                decoder.release();
+                                return;
+                            }
 
-                    // Update the length of message
-                    messageLength = extractMessageSize(data.toByteArray());
+                            socketChannel.read(decoder.getReadBuffer(), null, readHandler);
+                        }
+                    }, delay, TimeUnit.NANOSECONDS);
+                    return;
                 }
 
-                buffer.clear();
-                socketChannel.read(buffer, null, this);
+                socketChannel.read(decoder.getReadBuffer(), null, this);
             }
 
             @Override
             public void failed(Throwable exc, Void attachment) {
+                // No read is pending anymore, so the buffer can be given back
+                decoder.release();
+
                 if (exc instanceof AsynchronousCloseException) return;
 
                 System.err.println("An error occurred during read from the socket" +
@@ -107,20 +163,38 @@ public class Peer {
     public void disconnect() {
         try {
             mediator.deregisterPeer(peerID);
-            socketChannel.close();
+            metrics.unregister();
+            if (socketChannel != null) {
+                socketChannel.close();
+            }
+
+            if (writeQueue != null) {
+                writeQueue.close();
+            }
         } catch (IOException e) {
             System.err.println("Can't disconnect from a peer with the following ID: " + peerID.toString());
         }
     }
 
     public void sendMessage(byte[] message) {
-        socketChannel.write(ByteBuffer.wrap(message));
+        // Drop the messages to a peer which is not connected yet
+        WriteQueue writeQueue = this.writeQueue;
+        if (writeQueue == null) {
+            return;
+        }
+
+        // Copy the message into a direct buffer to avoid a temporary one inside the JDK
+        writeQueue.enqueue(PooledBuffer.wrap(message));
     }
 
-    private int extractMessageSize(byte[] message) {
-        return (message.length < 4)
-                ? Integer.MAX_VALUE
-                : ByteBuffer.wrap(message, 0, 4).getInt();
+    public void sendMessage(byte[] header, ByteBuffer data) {
+        WriteQueue writeQueue = this.writeQueue;
+        if (writeQueue == null) {
+            return;
+        }
+
+        // The data is written as it is, without copying it into the pool
+        writeQueue.enqueue(PooledBuffer.wrap(header), PooledBuffer.wrap(data));
     }
 
     public UUID getPeerID() {
@@ -129,25 +203,125 @@ public class Peer {
 
     public void setPeerID(UUID peerID) {
         this.peerID = peerID;
+
+        // Publish the metrics under the real ID of the peer
+        metrics.register("Peer", peerID.toString());
     }
 
     public BitSet getAvailablePieces() {
         return availablePieces;
     }
 
-    public BitSet getRequestedPieces() {
-        return requestedPieces;
-    }
-
     public void setAvailablePieces(BitSet availablePieces) {
         this.availablePieces = availablePieces;
     }
 
-    public void updateAvailablePieces(short pieceIndex) {
-        availablePieces.flip(pieceIndex);
+    public boolean updateAvailablePieces(short pieceIndex) {
+        if (availablePieces.get(pieceIndex)) {
+            return false;
+        }
+
+        availablePieces.set(pieceIndex);
+        return true;
+    }
+
+    public int getOutstandingBlocks() {
+        return outstandingBlocks;
+    }
+
+    public void updateOutstandingBlocks(int delta) {
+        outstandingBlocks = Math.max(0, outstandingBlocks + delta);
+    }
+
+    public int getRequestWindow() {
+        return (int) requestWindow;
+    }
+
+    public long getRequestTimeout() {
+        if (smoothedRoundTripTime < 0) {
+            return INITIAL_REQUEST_TIMEOUT;
+        }
+
+        long timeout = smoothedRoundTripTime + 4 * roundTripTimeVariance;
+        return Math.min(MAXIMUM_REQUEST_TIMEOUT, Math.max(MINIMUM_REQUEST_TIMEOUT, timeout));
+    }
+
+    public void updateRoundTripTime(long roundTripTime) {
+        metrics.recordRoundTripTime(roundTripTime);
+
+        // Estimate the round trip time the same way TCP does
+        if (smoothedRoundTripTime < 0) {
+            smoothedRoundTripTime = roundTripTime;
+            roundTripTimeVariance = roundTripTime / 2;
+        } else {
+            roundTripTimeVariance = (3 * roundTripTimeVariance + Math.abs(smoothedRoundTripTime - roundTripTime)) / 4;
+            smoothedRoundTripTime = (7 * smoothedRoundTripTime + roundTripTime) / 8;
+        }
+
+        // Additive increase, about one more request per window of answered requests
+        requestWindow = Math.min(MAXIMUM_REQUEST_WINDOW, requestWindow + 1 / requestWindow);
+    }
+
+    public void notifyAboutRequestTimeout() {
+        metrics.recordRequestTimeout();
+
+        // Multiplicative decrease
+        requestWindow = Math.max(1, requestWindow / 2);
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public boolean isChoking() {
+        return isChoking;
+    }
+
+    public void setChoking(boolean isChoking) {
+        this.isChoking = isChoking;
+    }
+
+    public boolean isInterested() {
+        return isInterested;
+    }
+
+    public void setInterested(boolean isInterested) {
+        this.isInterested = isInterested;
+    }
+
+    public boolean isPeerChoking() {
+        return isPeerChoking;
+    }
+
+    public void setPeerChoking(boolean isPeerChoking) {
+        this.isPeerChoking = isPeerChoking;
+    }
+
+    public boolean isPeerInterested() {
+        return isPeerInterested;
+    }
+
+    public void setPeerInterested(boolean isPeerInterested) {
+        this.isPeerInterested = isPeerInterested;
+    }
+
+    public void updateDownloadedBytes(int length) {
+        downloadedBytes += length;
+    }
+
+    public void updateUploadedBytes(int length) {
+        uploadedBytes += length;
+    }
+
+    public void updateTransferRate(boolean isSeeding, long elapsed) {
+        long bytes = isSeeding ? uploadedBytes : downloadedBytes;
+        transferRate = bytes * TimeUnit.SECONDS.toNanos(1) / elapsed;
+
+        downloadedBytes = 0;
+        uploadedBytes = 0;
     }
 
-    public void  updateRequestedPieces(short pieceIndex) {
-        requestedPieces.flip(pieceIndex);
+    public long getTransferRate() {
+        return transferRate;
     }
 }
@@ -0,0 +1,92 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PieceHasher {
+    // Amount of data hashed sequentially by a single task
+    private static final long SEQUENTIAL_BYTES = 16L * 1024 * 1024;
+    private static final int PROGRESS_STEP = 10;
+
+    private final FileProxy proxy;
+    private final int pieceCount;
+    private final int piecesPerTask;
+    private final byte[][] pieceHashes;
+
+    private final AtomicInteger hashedCount = new AtomicInteger();
+    private final AtomicInteger reportedProgress = new AtomicInteger();
+
+    private PieceHasher(FileProxy proxy, FileInfo fileInfo) {
+        this.proxy = proxy;
+        this.pieceCount = fileInfo.pieceCount;
+        this.piecesPerTask = (int) Math.max(1, SEQUENTIAL_BYTES / fileInfo.pieceSize);
+        this.pieceHashes = new byte[fileInfo.pieceCount][];
+    }
+
+    public static byte[][] hash(FileProxy proxy, FileInfo fileInfo) {
+        PieceHasher hasher = new PieceHasher(proxy, fileInfo);
+        try {
+            ForkJoinPool.commonPool().invoke(hasher.new HashTask(0, fileInfo.pieceCount));
+        } catch (UncheckedIOException e) {
+            // A partial set of hashes would describe another file
+            System.err.println("Can not hash the file: " + e.getCause().getMessage());
+            return null;
+        }
+
+        return hasher.pieceHashes;
+    }
+
+    private void hashRange(int from, int to) {
+        // Each worker thread has its own digest
+        MessageDigest digest = FileInfo.getDigest();
+
+        // Walk the range in order so that the file is read sequentially
+        for (int i = from; i < to; i++) {
+            ByteBuffer piece = proxy.getPieceBuffer((short) i);
+            if (piece == null) {
+                throw new UncheckedIOException(new IOException("the piece " + i + " can not be read"));
+            }
+
+            digest.update(piece);
+            pieceHashes[i] = digest.digest();
+        }
+
+        reportProgress(hashedCount.addAndGet(to - from));
+    }
+
+    private void reportProgress(int hashed) {
+        int progress = (int) ((long) hashed * 100 / pieceCount) / PROGRESS_STEP * PROGRESS_STEP;
+        int reported = reportedProgress.get();
+
+        if (progress > reported && reportedProgress.compareAndSet(reported, progress)) {
+            System.out.println("Hashing the file: " + progress + "%");
+        }
+    }
+
+    private class HashTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        HashTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= piecesPerTask) {
+                hashRange(from, to);
+                return;
+            }
+
+            // Split on a task boundary to keep every leaf a contiguous part of the file
+            int middle = from + Math.max(1, (to - from) / piecesPerTask / 2) * piecesPerTask;
+            invokeAll(new HashTask(from, middle), new HashTask(middle, to));
+        }
+    }
+}
@@ -0,0 +1,174 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class PiecePicker {
+    private static final int NONE = -1;
+
+    // Number of candidates examined by a single pick, whatever the number of pieces
+    private static final int MAXIMUM_SCANNED_PIECES = 32;
+
+    private final int pieceCount;
+    private final int[] availability;
+
+    // Candidate pieces are linked into one bucket per availability count
+    private final int[] next;
+    private final int[] previous;
+    private int[] heads;
+    private int highestAvailability;
+
+    // Pieces that are already present or in progress are kept out of the buckets
+    private final BitSet excluded;
+
+    public PiecePicker(int pieceCount, BitSet excluded) {
+        this.pieceCount = pieceCount;
+        this.availability = new int[pieceCount];
+        this.next = new int[pieceCount];
+        this.previous = new int[pieceCount];
+        this.heads = new int[16];
+        this.highestAvailability = 0;
+        this.excluded = (BitSet) excluded.clone();
+
+        Arrays.fill(heads, NONE);
+        for (int i = pieceCount - 1; i >= 0; i--) {
+            if (!this.excluded.get(i)) {
+                link(i);
+            }
+        }
+    }
+
+    public synchronized void addPeer(BitSet pieces) {
+        for (int i = pieces.nextSetBit(0); i >= 0 && i < pieceCount; i = pieces.nextSetBit(i + 1)) {
+            updateAvailability(i, 1);
+        }
+    }
+
+    public synchronized void removePeer(BitSet pieces) {
+        for (int i = pieces.nextSetBit(0); i >= 0 && i < pieceCount; i = pieces.nextSetBit(i + 1)) {
+            updateAvailability(i, -1);
+        }
+    }
+
+    public synchronized void addPiece(int pieceIndex) {
+        if (pieceIndex >= 0 && pieceIndex < pieceCount) {
+            updateAvailability(pieceIndex, 1);
+        }
+    }
+
+    public synchronized void exclude(int pieceIndex) {
+        if (!excluded.get(pieceIndex)) {
+            unlink(pieceIndex);
+            excluded.set(pieceIndex);
+        }
+    }
+
+    public synchronized void include(int pieceIndex) {
+        if (excluded.get(pieceIndex)) {
+            excluded.clear(pieceIndex);
+            link(pieceIndex);
+        }
+    }
+
+    public synchronized int pick(BitSet peerPieces) {
+        // Walk the buckets from the rarest pieces, skipping those nobody has, but only so far
+        int scannedCount = 0;
+        for (int count = 1; count <= highestAvailability && scannedCount < MAXIMUM_SCANNED_PIECES; count++) {
+            for (int i = heads[count]; i != NONE && scannedCount < MAXIMUM_SCANNED_PIECES; i = next[i]) {
+                if (peerPieces.get(i)) {
+                    return i;
+                }
+                scannedCount++;
+            }
+        }
+
+        if (pieceCount == 0) {
+            return NONE;
+        }
+
+        // The peer lacks the rarest pieces, take the rarest of a few pieces it can give us
+        BitSet candidates = (BitSet) peerPieces.clone();
+        candidates.andNot(excluded);
+        if (candidates.length() > pieceCount) {
+            candidates.clear(pieceCount, candidates.length());
+        }
+
+        // Start at a random piece, so that peers lacking the same pieces do not all pick the same one
+        int start = ThreadLocalRandom.current().nextInt(pieceCount);
+        int rarestPiece = NONE;
+        scannedCount = 0;
+        for (int i = candidates.nextSetBit(start); scannedCount < MAXIMUM_SCANNED_PIECES; i = candidates.nextSetBit(i + 1)) {
+            if (i < 0) {
+                // Wrap around once, the pieces before the start have not been visited
+                if (start == 0) {
+                    break;
+                }
+                candidates.clear(start, pieceCount);
+                start = 0;
+                i = candidates.nextSetBit(0);
+                if (i < 0) {
+                    break;
+                }
+            }
+
+            if (rarestPiece == NONE || availability[i] < availability[rarestPiece]) {
+                rarestPiece = i;
+            }
+            scannedCount++;
+        }
+
+        return rarestPiece;
+    }
+
+    public synchronized int getAvailability(int pieceIndex) {
+        return availability[pieceIndex];
+    }
+
+    private void updateAvailability(int pieceIndex, int delta) {
+        int count = availability[pieceIndex] + delta;
+        if (count < 0) {
+            return;
+        }
+
+        // Move the piece to the bucket of its new availability
+        if (!excluded.get(pieceIndex)) {
+            unlink(pieceIndex);
+            availability[pieceIndex] = count;
+            link(pieceIndex);
+        } else {
+            availability[pieceIndex] = count;
+        }
+    }
+
+    private void link(int pieceIndex) {
+        int count = availability[pieceIndex];
+
+        if (count >= heads.length) {
+            int length = heads.length;
+            heads = Arrays.copyOf(heads, Math.max(count + 1, length * 2));
+            Arrays.fill(heads, length, heads.length, NONE);
+        }
+
+        highestAvailability = Math.max(highestAvailability, count);
+
+        previous[pieceIndex] = NONE;
+        next[pieceIndex] = heads[count];
+        if (heads[count] != NONE) {
+            previous[heads[count]] = pieceIndex;
+        }
+        heads[count] = pieceIndex;
+    }
+
+    private void unlink(int pieceIndex) {
+        int count = availability[pieceIndex];
+
+        if (previous[pieceIndex] != NONE) {
+            next[previous[pieceIndex]] = next[pieceIndex];
+        } else {
+            heads[count] = next[pieceIndex];
+        }
+
+        if (next[pieceIndex] != NONE) {
+            previous[next[pieceIndex]] = previous[pieceIndex];
+        }
+    }
+}
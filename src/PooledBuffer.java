@@ -0,0 +1,46 @@
+import java.lang.ref.PhantomReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class PooledBuffer {
+    final BufferPool pool;
+    final ByteBuffer buffer;
+    final int sizeClass;
+    PhantomReference<PooledBuffer> leakReference;
+
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer, int sizeClass) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.sizeClass = sizeClass;
+    }
+
+    public static PooledBuffer wrap(ByteBuffer buffer) {
+        // Not owned by any pool, release is a no-op
+        return new PooledBuffer(null, buffer, -1);
+    }
+
+    public static PooledBuffer wrap(byte[] message) {
+        PooledBuffer pooledBuffer = BufferPool.SHARED.acquire(message.length);
+        pooledBuffer.buffer.put(message).flip();
+
+        return pooledBuffer;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public void release() {
+        // Guard against double release which would put the buffer into the pool twice
+        if (!released.compareAndSet(false, true)) {
+            System.err.println("A pooled buffer has been released twice.");
+            return;
+        }
+
+        if (pool != null) {
+            pool.release(this);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+public class RequestContext {
+    public final DatagramChannel channel;
+    public final ByteBuffer replyBuffer;
+
+    // Sender and transaction of the request being handled, the context is reused for every datagram of a reactor
+    public SocketAddress address;
+    public int transactionID;
+
+    public RequestContext(DatagramChannel channel, ByteBuffer replyBuffer) {
+        this.channel = channel;
+        this.replyBuffer = replyBuffer;
+    }
+}
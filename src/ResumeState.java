@@ -0,0 +1,176 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.zip.CRC32;
+
+public class ResumeState {
+    private static final String EXTENSION = ".resume";
+    private static final int MAGIC = 0x52534D31;
+    private static final int CHECKPOINT_INTERVAL = 64;
+
+    private final Path filePath;
+    private final Path tempFilePath;
+    private final FileInfo fileInfo;
+
+    // Pieces verified before the last checkpoint and pieces written after it
+    private BitSet checkpointedPieces = new BitSet();
+    private BitSet touchedPieces = new BitSet();
+
+    private FileChannel journalChannel;
+    private int journalLength;
+
+    private ResumeState(String location, FileInfo fileInfo) {
+        this.filePath = Paths.get(location + File.separatorChar + fileInfo.fileName + EXTENSION);
+        this.tempFilePath = Paths.get(location + File.separatorChar + fileInfo.fileName + EXTENSION + ".tmp");
+        this.fileInfo = fileInfo;
+    }
+
+    public static ResumeState open(String location, FileInfo fileInfo) {
+        ResumeState state = new ResumeState(location, fileInfo);
+
+        try {
+            if (Files.exists(state.filePath)) {
+                state.load(Files.readAllBytes(state.filePath));
+            }
+        } catch (IOException e) {
+            System.err.println("Can not read the resume state, the download starts from the beginning.");
+            state.checkpointedPieces = new BitSet();
+            state.touchedPieces = new BitSet();
+        }
+
+        return state;
+    }
+
+    private void load(byte[] content) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+
+        // Check that the sidecar belongs to the same file
+        if (buffer.remaining() < 2 * Integer.BYTES || buffer.getInt() != MAGIC) {
+            throw new IOException("Unknown resume state format.");
+        }
+
+        // A truncated sidecar is rejected before anything is read past its end
+        byte[] hash = new byte[fileInfo.hash.length];
+        if (buffer.remaining() < hash.length + Integer.BYTES) {
+            throw new IOException("The resume state is truncated.");
+        }
+
+        buffer.get(hash);
+        if (!Arrays.equals(hash, fileInfo.hash)) {
+            throw new IOException("The resume state belongs to another file.");
+        }
+
+        int bitSetLength = buffer.getInt();
+        if (bitSetLength < 0 || bitSetLength > buffer.remaining() - Integer.BYTES) {
+            throw new IOException("The resume state is corrupted.");
+        }
+
+        byte[] bitSet = new byte[bitSetLength];
+        buffer.get(bitSet);
+
+        // Verify the checksum of the checkpoint
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, buffer.position());
+        if ((int) crc.getValue() != buffer.getInt()) {
+            throw new IOException("The resume state is corrupted.");
+        }
+
+        checkpointedPieces = BitSet.valueOf(bitSet);
+
+        // Recover the pieces written after the checkpoint, a torn last entry is ignored
+        while (buffer.remaining() >= Integer.BYTES) {
+            int pieceIndex = buffer.getInt();
+            if (pieceIndex >= 0 && pieceIndex < fileInfo.pieceCount) {
+                touchedPieces.set(pieceIndex);
+            }
+        }
+    }
+
+    public BitSet getCheckpointedPieces() {
+        return checkpointedPieces;
+    }
+
+    public BitSet getTouchedPieces() {
+        return touchedPieces;
+    }
+
+    public synchronized boolean record(short pieceIndex) {
+        try {
+            if (journalChannel == null) {
+                journalChannel = FileChannel.open(filePath, EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+            }
+
+            // Append the piece without forcing it, it is verified again on recovery anyway
+            journalChannel.write(ByteBuffer.wrap(ByteAuxiliary.toByteArray((int) pieceIndex)));
+        } catch (IOException e) {
+            System.err.println("Can not update the resume state.");
+        }
+
+        return ++journalLength >= CHECKPOINT_INTERVAL;
+    }
+
+    public synchronized void checkpoint(BitSet pieces) {
+        byte[] bitSet = pieces.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + fileInfo.hash.length + Integer.BYTES + bitSet.length + Integer.BYTES);
+
+        buffer.putInt(MAGIC);
+        buffer.put(fileInfo.hash);
+        buffer.putInt(bitSet.length);
+        buffer.put(bitSet);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+
+        try {
+            closeJournal();
+
+            // Replace the sidecar atomically, which also empties the journal
+            try (FileChannel channel = FileChannel.open(tempFilePath, EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(tempFilePath, filePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+            journalLength = 0;
+        } catch (IOException e) {
+            System.err.println("Can not save the resume state.");
+        }
+    }
+
+    public synchronized void delete() {
+        try {
+            closeJournal();
+            Files.deleteIfExists(filePath);
+        } catch (IOException e) {
+            System.err.println("Can not delete the resume state.");
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            closeJournal();
+        } catch (IOException e) {
+            System.err.println("Can not close the resume state.");
+        }
+    }
+
+    private void closeJournal() throws IOException {
+        if (journalChannel != null) {
+            journalChannel.close();
+            journalChannel = null;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class Scheduler {
+    private final Runnable task;
+    private final long idleTimeout;
+
+    // At most one permit is ever pending, no matter how many events arrive
+    private final Semaphore signal = new Semaphore(0);
+    private final AtomicBoolean isSignalled = new AtomicBoolean(false);
+    private volatile boolean isStopping = false;
+
+    // Only one thread ever runs the task, however many times the scheduler is started
+    private final AtomicBoolean isStarted = new AtomicBoolean(false);
+
+    public Scheduler(Runnable task, long idleTimeout) {
+        this.task = task;
+        this.idleTimeout = idleTimeout;
+    }
+
+    public void start() {
+        if (!isStarted.compareAndSet(false, true)) {
+            return;
+        }
+
+        Thread thread = new Thread() {
+            public void run() {
+                while (!isStopping) {
+                    try {
+                        // Sleep until an event arrives, wake up periodically for the timers
+                        signal.tryAcquire(idleTimeout, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        System.err.println("Problem with the scheduler thread!");
+                        return;
+                    }
+
+                    // Events arriving from now on schedule another run
+                    isSignalled.set(false);
+
+                    if (isStopping) {
+                        break;
+                    }
+
+                    // A failed run is reported, the next event gets another one
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("The scheduled task has failed: " + e);
+                    }
+                }
+            }
+        };
+
+        thread.setName("scheduler");
+        thread.start();
+    }
+
+    public void wakeUp() {
+        if (isSignalled.compareAndSet(false, true)) {
+            signal.release();
+        }
+    }
+
+    public void stop() {
+        isStopping = true;
+        wakeUp();
+    }
+}
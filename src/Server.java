@@ -1,24 +1,45 @@
+import java.io.File;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
 
 public class Server implements ISMessageHandler {
     private static final int MAX_UDP_PACKET_SIZE = 65507;
     private final int LISTENING_PORT = 7777;
 
-    private byte[] buffer = new byte[MAX_UDP_PACKET_SIZE];
+    // Number of reactor threads, each of them receives and handles requests on its own
+    private static final int REACTOR_COUNT = Integer.getInteger("tracker.reactors", Runtime.getRuntime().availableProcessors());
+    private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
 
-    private HashMap<UUID, DatagramPacket> packets = new HashMap<>();
-    private HashMap<UUID, PeerInfo> peersInfo = new HashMap<>();
-    private ConcurrentLinkedQueue<Swarm> swarms = new ConcurrentLinkedQueue<>();
+    // Upper bound of peers returned by a single reply, whatever the client wants
+    private static final int MAXIMUM_PEERS_WANTED = 200;
 
-    private DatagramSocket socket;
+    // Upper bounds of files listed and of names searched by a single reply
+    private static final int MAXIMUM_FILES_WANTED = 1000;
+    private static final int MAXIMUM_SCANNED_FILES = 10000;
+
+    // Interval of heartbeats suggested to the clients, a peer silent for a few intervals is expired
+    private static final int ANNOUNCE_INTERVAL = Integer.getInteger("tracker.interval", 30);
+    private static final long PEER_TIMEOUT = TimeUnit.SECONDS.toMillis(3 * ANNOUNCE_INTERVAL);
+    private static final long EXPIRY_TICK = TimeUnit.SECONDS.toMillis(1);
+
+    // Directory of the snapshot and the log the tracker state is recovered from
+    private static final String DATA_DIRECTORY = System.getProperty("tracker.data", "tracker-data");
+
+    private ConcurrentHashMap<UUID, TrackedPeer> peersInfo = new ConcurrentHashMap<>();
+    private SwarmRegistry swarms = new SwarmRegistry();
+    private TimingWheel<TrackedPeer> expiryWheel = new TimingWheel<>(EXPIRY_TICK, now());
+    private TrackerJournal journal = new TrackerJournal(new File(DATA_DIRECTORY), swarms, peersInfo);
+
+    private DatagramChannel channel;
     private MessageObserver observer;
 
     public Server() {
@@ -28,180 +49,309 @@ public class Server implements ISMessageHandler {
         observer = new MessageObserver();
         observer.registerSMessageHandler(this);
 
-        // Try to obtain the server socket
+        // Try to obtain the server socket, with a large kernel buffer to absorb bursts
         try {
-            socket = new DatagramSocket(LISTENING_PORT);
-            receiveMessage();
-        }catch (SocketException e) {
-                System.err.println("Can not obtain the server socket.");
+            channel = DatagramChannel.open();
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            channel.bind(new InetSocketAddress(LISTENING_PORT));
+        } catch (IOException e) {
+            System.err.println("Can not obtain the server socket.");
+            return;
+        }
+
+        // Recover the state before any request is handled, the restored peers expire unless they show up
+        journal.recover(now());
+        for (TrackedPeer trackedPeer : peersInfo.values()) {
+            expiryWheel.schedule(trackedPeer, trackedPeer.lastSeen + PEER_TIMEOUT);
+        }
+        journal.start();
+
+        // Start expiring the peers which have stopped sending heartbeats
+        Thread expiryThread = new Thread() {
+            public void run() {
+                expirePeers();
+            }
+        };
+        expiryThread.setDaemon(true);
+        expiryThread.start();
+
+        // Start the reactors, the current thread becomes the last one
+        for (int i = 1; i < REACTOR_COUNT; i++) {
+            Thread thread = new Thread() {
+                public void run() {
+                    receiveMessage();
+                }
+            };
+            thread.start();
         }
+
+        receiveMessage();
     }
 
     private void receiveMessage() {
+        // Every reactor owns direct buffers, so the datagram is not copied on the way in
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_UDP_PACKET_SIZE);
+        RequestContext context = new RequestContext(channel, ByteBuffer.allocateDirect(MAX_UDP_PACKET_SIZE));
+
         try {
             while (true) {
-                // Create temporary ID for the packet
-                UUID packetID = UUID.randomUUID();
-
                 // Receive the packet
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
-
-                // Store received information into the separate buffer
-                byte[] data = new byte[packet.getLength()];
-                System.arraycopy(packet.getData(), packet.getOffset(), data, 0, packet.getLength());
-
-                // Put the packet into the temporary hash map
-                packets.put(packetID, packet);
-
-                // Create new thread to handle the message
-                new Thread() {
-                    public void run() {
-                        observer.handleMessage(packetID, data);
-                    }
-                }.start();
+                buffer.clear();
+                context.address = channel.receive(buffer);
+                buffer.flip();
+
+                // Handle the message right away, it is decoded straight from the buffer
+                try {
+                    observer.handleRequest(context, buffer);
+                } catch (RuntimeException e) {
+                    System.err.println("Received a malformed message from " + context.address);
+                }
             }
         } catch (IOException e) {
             System.err.println("An error occurred during read from the socket.");
         }
     }
 
-    private void sendMessage(UUID packetID, byte[] message) {
-        DatagramPacket packet = packets.remove(packetID);
-        packet.setData(message);
+    private void expirePeers() {
+        ArrayList<TrackedPeer> duePeers = new ArrayList<>();
 
-        try {
-            socket.send(packet);
-        } catch (IOException e) {
-            System.err.println("Unable to send the UDP message.");
+        while (true) {
+            try {
+                Thread.sleep(EXPIRY_TICK);
+            } catch (InterruptedException e) {
+                System.err.println("Problem with the expiry thread!");
+                return;
+            }
+
+            long now = now();
+            duePeers.clear();
+            expiryWheel.advance(now, duePeers);
+
+            for (TrackedPeer trackedPeer : duePeers) {
+                expirePeer(trackedPeer, now);
+            }
         }
     }
 
-    private String listFiles() {
-        final int MAXIMUM_NUMBER_OF_LISTED_FILES = 50;
+    private void expirePeer(final TrackedPeer trackedPeer, final long now) {
+        final boolean[] isExpired = new boolean[1];
 
-        StringBuilder stringBuilder = new StringBuilder();
-        int listedFileCount = 0;
+        // Decide under the lock of the peer, so that a request refreshing it meanwhile is not undone
+        peersInfo.computeIfPresent(trackedPeer.peerInfo.peerID, new BiFunction<UUID, TrackedPeer, TrackedPeer>() {
+            @Override
+            public TrackedPeer apply(UUID peerID, TrackedPeer currentPeer) {
+                // Skip the peers which have exited or have been replaced meanwhile
+                if (currentPeer != trackedPeer) {
+                    return currentPeer;
+                }
 
-        for (Swarm swarm : swarms) {
-            stringBuilder.append('\t');
+                // Heartbeats only refresh the time, the deadline is moved lazily once it is reached
+                long deadline = trackedPeer.lastSeen + PEER_TIMEOUT;
+                if (deadline > now) {
+                    expiryWheel.schedule(trackedPeer, deadline);
+                    return currentPeer;
+                }
 
-            if (listedFileCount++ < MAXIMUM_NUMBER_OF_LISTED_FILES) {
-                stringBuilder.append(swarm.fileInfo.fileName);
-            } else {
-                stringBuilder.append("...");
-                break;
+                swarms.removePeer(peerID);
+                isExpired[0] = true;
+                return null;
             }
+        });
 
-            stringBuilder.append('\n');
+        if (isExpired[0]) {
+            journal.logLeave(trackedPeer.peerInfo.peerID);
         }
-
-        return stringBuilder.toString();
     }
 
-    @Override
-    public void handleDirectoryListingRequestMessage(UUID packetID) {
-        String list = listFiles();
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
 
-        byte[] message = MessageBuilder.buildDirectoryListingReplyMessage(list);
-        sendMessage(packetID, message);
+    private void sendMessage(RequestContext context) {
+        // The reply has been built into the buffer of the context
+        try {
+            context.channel.send(context.replyBuffer, context.address);
+        } catch (IOException e) {
+            System.err.println("Unable to send the UDP message.");
+        }
     }
 
     @Override
-    public void handleAnnounceRequestMessage(UUID packetID, UUID peerID, FileInfo fileInfo) {
-        int status = 1;
+    public void handleDirectoryListingRequestMessage(RequestContext context, ListingMode mode, int count, String cursor, String query) {
+        int wanted = Math.max(0, Math.min(count, MAXIMUM_FILES_WANTED));
+
+        // Leave room for the type, the transaction and the cursor of the reply, which is at most as long as a listed name
+        int space = context.replyBuffer.capacity() - 1 - Integer.BYTES;
+
+        // A prefix search jumps straight to the first matching name, other listings continue after the cursor
+        String start = cursor;
+        if (mode == ListingMode.Prefix && cursor.compareTo(query) < 0) {
+            start = query;
+        }
+        boolean isInclusive = cursor.isEmpty() || !start.equals(cursor);
 
-        // Check whether the file announcement is duplicate
-        for (Swarm swarm : swarms) {
-            if (Arrays.equals(fileInfo.hash, swarm.fileInfo.hash)) {
-                status = 0;
+        ArrayList<byte[]> fileNames = new ArrayList<>();
+        String nextCursor = "";
+        int scannedCount = 0;
+
+        for (Swarm swarm : swarms.getSwarmsFrom(start, isInclusive)) {
+            String fileName = swarm.fileInfo.fileName;
+
+            // Names are sorted, so the first one without the prefix ends the search
+            if (mode == ListingMode.Prefix && !fileName.startsWith(query)) {
+                nextCursor = "";
                 break;
             }
-        }
 
-        if (status != 0) {
-            // Add the peer to the peers info hash map
-            if (!peersInfo.containsKey(peerID)) {
-                DatagramPacket packet = packets.get(packetID);
-                PeerInfo peerInfo = new PeerInfo(peerID, packet.getAddress(), packet.getPort());
+            // Stop once the page is full or a substring search has examined enough names
+            byte[] encodedFileName = ByteAuxiliary.toByteArray(fileName);
+            if (fileNames.size() == wanted || scannedCount == MAXIMUM_SCANNED_FILES
+                    || space < 2 * (encodedFileName.length + 2)) {
+                break;
+            }
+
+            scannedCount++;
+            nextCursor = fileName;
 
-                peersInfo.put(peerID, peerInfo);
+            if (mode == ListingMode.Substring && !fileName.contains(query)) {
+                continue;
             }
 
-            // Create new swarm
-            Swarm swarm = new Swarm(fileInfo);
-            swarm.addPeer(peerID);
+            fileNames.add(encodedFileName);
+            space -= encodedFileName.length + 2;
+        }
 
-            // Put into the swarms hash map
-            swarms.add(swarm);
+        // The whole catalog has been visited when nothing is left after the cursor
+        if (!nextCursor.isEmpty() && swarms.getSwarmsFrom(nextCursor, false).isEmpty()) {
+            nextCursor = "";
         }
 
-        byte[] message = MessageBuilder.buildAnnounceReplyMessage(status);
-        sendMessage(packetID, message);
+        MessageBuilder.buildDirectoryListingReplyMessage(context.transactionID, nextCursor, fileNames, context.replyBuffer);
+        sendMessage(context);
     }
 
     @Override
-    public void handleConnectRequestMessage(UUID packetID, UUID peerID, String fileName) {
-        // Check whether the swarm for the file exists
-        Swarm swarm = null;
-        for (Swarm s : swarms) {
-            if (s.fileInfo.fileName.equals(fileName)) {
-                swarm = s;
-                break;
-            }
+    public void handleAnnounceRequestMessage(RequestContext context, UUID peerID, FileInfo fileInfo) {
+        // Add the peer to the peers info hash map
+        addPeerInfo(context, peerID);
+
+        // Create new swarm and put it into the registry, unless the file is known or a concurrent announcement has done it
+        Swarm swarm = swarms.findByHash(fileInfo.hash);
+        if (swarm == null) {
+            swarm = swarms.createSwarm(fileInfo, peerID);
+        }
+        if (swarm == null) {
+            swarm = swarms.findByHash(fileInfo.hash);
+        }
+
+        // The announcing peer seeds the file, whether it is new, has finished downloading or is announcing again
+        int status = 0;
+        if (swarm != null && swarms.addSeeder(swarm, peerID)) {
+            status = 1;
+            journal.logSwarm(fileInfo, peerID);
         }
 
+        MessageBuilder.buildAnnounceReplyMessage(context.transactionID, status, ANNOUNCE_INTERVAL, context.replyBuffer);
+        sendMessage(context);
+    }
+
+    @Override
+    public void handleConnectRequestMessage(RequestContext context, UUID peerID, int peersWanted, String fileName) {
+        // Check whether the swarm for the file exists
+        Swarm swarm = swarms.findByName(fileName);
+
         int status = 0;
         ArrayList<PeerInfo> pInfo = null;
         FileInfo fInfo = null;
+        if (swarm != null) {
+            // Add the peer to the peers info hash map
+            addPeerInfo(context, peerID);
+
+            // Add the peer to the swarm, looking it up again if it has been destroyed meanwhile
+            while (swarm != null && !swarms.addPeer(swarm, peerID)) {
+                swarm = swarms.findByName(fileName);
+            }
+
+            if (swarm != null) {
+                journal.logJoin(swarm.fileInfo, peerID);
+            }
+        }
+
         if (swarm != null) {
             // Update the status
             status = 1;
 
-            // Get the list of peers in the swarm
-            pInfo = new ArrayList<>();
-            for (UUID pID : swarm.peerIDs) {
-                PeerInfo peerInfo = peersInfo.get(pID);
-                pInfo.add(peerInfo);
+            // Get a random sample of other peers in the swarm, skipping those which are leaving right now
+            int count = Math.max(0, Math.min(peersWanted, MAXIMUM_PEERS_WANTED));
+
+            pInfo = new ArrayList<>(count);
+            for (UUID pID : swarm.samplePeers(count, peerID, ThreadLocalRandom.current())) {
+                TrackedPeer trackedPeer = peersInfo.get(pID);
+                if (trackedPeer != null) {
+                    pInfo.add(trackedPeer.peerInfo);
+                }
             }
 
             // Get the file info
             fInfo = swarm.fileInfo;
+        }
 
-            // Add the peer to the peers info hash map
-            if (!peersInfo.containsKey(peerID)) {
-                DatagramPacket packet = packets.get(packetID);
-                PeerInfo peerInfo = new PeerInfo(peerID, packet.getAddress(), packet.getPort());
+        MessageBuilder.buildConnectReplyMessage(context.transactionID, status, ANNOUNCE_INTERVAL, fInfo, pInfo, context.replyBuffer);
+        sendMessage(context);
+    }
+
+    private void addPeerInfo(RequestContext context, UUID peerID) {
+        final InetSocketAddress address = (InetSocketAddress) context.address;
+        final TrackedPeer[] newPeer = new TrackedPeer[1];
+
+        // Refresh the peer under its lock, so that the expiry can not remove it right after
+        peersInfo.compute(peerID, new BiFunction<UUID, TrackedPeer, TrackedPeer>() {
+            @Override
+            public TrackedPeer apply(UUID peerID, TrackedPeer trackedPeer) {
+                if (trackedPeer != null) {
+                    trackedPeer.lastSeen = now();
+                    return trackedPeer;
+                }
 
-                peersInfo.put(peerID, peerInfo);
+                PeerInfo peerInfo = new PeerInfo(peerID, address.getAddress(), address.getPort());
+                newPeer[0] = new TrackedPeer(peerInfo, now());
+                return newPeer[0];
             }
+        });
 
-            // Add the peer to the swarm
-            swarm.addPeer(peerID);
+        // Only a newly tracked peer gets a timer
+        if (newPeer[0] != null) {
+            expiryWheel.schedule(newPeer[0], newPeer[0].lastSeen + PEER_TIMEOUT);
+            journal.logPeer(newPeer[0].peerInfo);
         }
-
-        byte[] message = MessageBuilder.buildConnectReplyMessage(status, fInfo, pInfo);
-        sendMessage(packetID, message);
     }
 
     @Override
-    public void handleExitMessage(UUID packetID, UUID peerID) {
-        // Remove the packet from the hash map
-        packets.remove(packetID);
-
-        // Find swarms where the peer appears and remove
-        for (Swarm swarm : swarms) {
-            if (swarm.peerIDs.contains(peerID)) {
-                swarm.removePeer(peerID);
-
-                // Check whether the swarm is destroyed
-                if (swarm.peerIDs.isEmpty()) {
-                    swarms.remove(swarm);
-                }
+    public void handleHeartbeatMessage(RequestContext context, UUID peerID) {
+        // Refresh the peer under its lock, like any other request
+        TrackedPeer trackedPeer = peersInfo.computeIfPresent(peerID, new BiFunction<UUID, TrackedPeer, TrackedPeer>() {
+            @Override
+            public TrackedPeer apply(UUID peerID, TrackedPeer trackedPeer) {
+                trackedPeer.lastSeen = now();
+                return trackedPeer;
             }
-        }
+        });
+
+        // Peers which have expired already are told to announce again
+        int status = trackedPeer != null ? 1 : 0;
+
+        MessageBuilder.buildHeartbeatReplyMessage(context.transactionID, status, ANNOUNCE_INTERVAL, context.replyBuffer);
+        sendMessage(context);
+    }
+
+    @Override
+    public void handleExitMessage(RequestContext context, UUID peerID) {
+        // Remove the peer from the swarms it has joined
+        swarms.removePeer(peerID);
 
         // Remove the peer from the hash map
-        peersInfo.remove(peerID);
+        if (peersInfo.remove(peerID) != null) {
+            journal.logLeave(peerID);
+        }
     }
 }
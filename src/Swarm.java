@@ -1,21 +1,142 @@
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
 import java.util.UUID;
 
 public class Swarm {
     public final FileInfo fileInfo;
-    public final ArrayList<UUID> peerIDs;
+
+    // Guarded by the swarm itself, so that only requests for the same file contend
+    private final ArrayList<UUID> seederIDs;
+    private final ArrayList<UUID> leecherIDs;
+    private final HashMap<UUID, Integer> positions;
+    private final HashSet<UUID> seederSet;
+    private boolean isDestroyed;
 
     public Swarm(FileInfo fileInfo) {
         this.fileInfo = fileInfo;
-        this.peerIDs = new ArrayList<>();
+        this.seederIDs = new ArrayList<>();
+        this.leecherIDs = new ArrayList<>();
+        this.positions = new HashMap<>();
+        this.seederSet = new HashSet<>();
+        this.isDestroyed = false;
     }
 
-    public void addPeer(UUID peerID) {
+    public synchronized boolean addPeer(UUID peerID, boolean isSeeder) {
+        // A destroyed swarm is about to leave the registry and must stay empty
+        if (isDestroyed) {
+            return false;
+        }
+
+        Integer position = positions.get(peerID);
+        if (position != null) {
+            // A leecher which has finished the file becomes a seeder, nobody goes the other way
+            if (isSeeder && seederSet.add(peerID)) {
+                removeAt(leecherIDs, position);
+                positions.put(peerID, seederIDs.size());
+                seederIDs.add(peerID);
+            }
+
+            return true;
+        }
+
+        // Peers are kept in arrays, so that any of them can be picked by the index
+        ArrayList<UUID> peerIDs = isSeeder ? seederIDs : leecherIDs;
+        positions.put(peerID, peerIDs.size());
         peerIDs.add(peerID);
+
+        if (isSeeder) {
+            seederSet.add(peerID);
+        }
+
+        return true;
     }
 
-    public void removePeer(UUID peerID) {
-        peerIDs.remove(peerID);
+    public synchronized boolean removePeer(UUID peerID) {
+        Integer position = positions.remove(peerID);
+        if (position == null) {
+            return false;
+        }
+
+        removeAt(seederSet.remove(peerID) ? seederIDs : leecherIDs, position);
+
+        // Tell whether the swarm has been destroyed by the last peer leaving
+        if (positions.isEmpty()) {
+            isDestroyed = true;
+            return true;
+        }
+
+        return false;
+    }
+
+    private void removeAt(ArrayList<UUID> peerIDs, int position) {
+        // Move the last peer into the freed slot to keep the array dense
+        UUID lastPeerID = peerIDs.remove(peerIDs.size() - 1);
+        if (position < peerIDs.size()) {
+            peerIDs.set(position, lastPeerID);
+            positions.put(lastPeerID, position);
+        }
     }
 
+    public synchronized ArrayList<UUID> samplePeers(int count, UUID excludedPeerID, Random random) {
+        ArrayList<UUID> sample = new ArrayList<>(count);
+
+        // Seeders come first, a new leecher gains the most from them
+        boolean isExcludedPresent = positions.containsKey(excludedPeerID);
+        boolean isExcludedSeeder = seederSet.contains(excludedPeerID);
+
+        samplePeers(seederIDs, count, isExcludedPresent && isExcludedSeeder ? excludedPeerID : null, random, sample);
+        samplePeers(leecherIDs, count, isExcludedPresent && !isExcludedSeeder ? excludedPeerID : null, random, sample);
+
+        return sample;
+    }
+
+    private static void samplePeers(ArrayList<UUID> peerIDs, int count, UUID excludedPeerID, Random random, ArrayList<UUID> sample) {
+        // The excluded peer, if it is among these ones, swaps places with the last one which is then left out
+        int size = excludedPeerID != null ? peerIDs.size() - 1 : peerIDs.size();
+        int wanted = Math.min(count - sample.size(), size);
+        if (wanted <= 0) {
+            return;
+        }
+
+        // Floyd's algorithm picks distinct indices uniformly in O(wanted)
+        HashSet<Integer> indices = new HashSet<>();
+        for (int i = size - wanted; i < size; i++) {
+            int index = random.nextInt(i + 1);
+            if (!indices.add(index)) {
+                indices.add(i);
+            }
+        }
+
+        for (int index : indices) {
+            UUID peerID = peerIDs.get(index);
+
+            // Take the last peer in place of the excluded one
+            if (peerID.equals(excludedPeerID)) {
+                peerID = peerIDs.get(size);
+            }
+            sample.add(peerID);
+        }
+    }
+
+    public synchronized ArrayList<UUID> getPeerIDs(boolean isSeeder) {
+        return new ArrayList<>(isSeeder ? seederIDs : leecherIDs);
+    }
+
+    public synchronized boolean destroyIfEmpty() {
+        if (positions.isEmpty()) {
+            isDestroyed = true;
+        }
+
+        return isDestroyed;
+    }
+
+    public synchronized boolean isDestroyed() {
+        return isDestroyed;
+    }
+
+    public synchronized int getPeerCount() {
+        return positions.size();
+    }
 }
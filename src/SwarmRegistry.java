@@ -0,0 +1,165 @@
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiFunction;
+
+public class SwarmRegistry {
+    // Swarms indexed by the info hash and by the file name, the names are sorted for paged listings
+    private ConcurrentHashMap<ByteBuffer, Swarm> swarmsByHash = new ConcurrentHashMap<>();
+    private ConcurrentSkipListMap<String, Swarm> swarmsByName = new ConcurrentSkipListMap<>();
+
+    // Reverse index of the swarms every peer has joined
+    private ConcurrentHashMap<UUID, Set<Swarm>> swarmsByPeer = new ConcurrentHashMap<>();
+
+    public Swarm findByHash(byte[] hash) {
+        return swarmsByHash.get(ByteBuffer.wrap(hash));
+    }
+
+    public Swarm findByName(String fileName) {
+        return swarmsByName.get(fileName);
+    }
+
+    public Swarm createSwarm(FileInfo fileInfo, UUID peerID) {
+        Swarm swarm = new Swarm(fileInfo);
+        // The announcing peer has the whole file, those joining later are leechers
+        return join(peerID, swarm, true, true) ? swarm : null;
+    }
+
+    public boolean addPeer(Swarm swarm, UUID peerID) {
+        return join(peerID, swarm, false, false);
+    }
+
+    public boolean addSeeder(Swarm swarm, UUID peerID) {
+        // Joins the swarm with the whole file, or promotes a member which has finished it
+        return join(peerID, swarm, false, true);
+    }
+
+    public Swarm restoreSwarm(FileInfo fileInfo) {
+        // Restored swarms are published before their peers, an existing one is reused, a taken name gives null
+        Swarm swarm = findByHash(fileInfo.hash);
+        if (swarm == null) {
+            swarm = new Swarm(fileInfo);
+            publishSwarm(swarm);
+        }
+
+        return findByHash(fileInfo.hash);
+    }
+
+    public boolean restorePeer(Swarm swarm, UUID peerID, boolean isSeeder) {
+        return join(peerID, swarm, false, isSeeder);
+    }
+
+    public void removeEmptySwarms() {
+        // Restored swarms whose peers have all left are never destroyed by a leaving peer
+        for (Swarm swarm : swarmsByHash.values()) {
+            if (swarm.destroyIfEmpty()) {
+                removeSwarm(swarm);
+            }
+        }
+    }
+
+    public void removePeer(UUID peerID) {
+        Set<Swarm> swarms = swarmsByPeer.remove(peerID);
+        if (swarms == null) {
+            return;
+        }
+
+        // Only the swarms the peer has joined are visited
+        for (Swarm swarm : swarms) {
+            if (swarm.removePeer(peerID)) {
+                removeSwarm(swarm);
+            }
+        }
+    }
+
+    private boolean join(UUID peerID, final Swarm swarm, final boolean isNew, final boolean isSeeder) {
+        final boolean[] isJoined = new boolean[1];
+
+        // Updates of the same peer are serialized by the map, those of other peers do not wait
+        swarmsByPeer.compute(peerID, new BiFunction<UUID, Set<Swarm>, Set<Swarm>>() {
+            @Override
+            public Set<Swarm> apply(UUID peerID, Set<Swarm> swarms) {
+                if (!swarm.addPeer(peerID, isSeeder) || (isNew && !publishSwarm(swarm))) {
+                    return swarms;
+                }
+
+                // Most peers join a single swarm, so the set starts small
+                if (swarms == null) {
+                    swarms = ConcurrentHashMap.newKeySet(1);
+                }
+                swarms.add(swarm);
+                isJoined[0] = true;
+
+                return swarms;
+            }
+        });
+
+        return isJoined[0];
+    }
+
+    private boolean publishSwarm(Swarm swarm) {
+        ByteBuffer hash = ByteBuffer.wrap(swarm.fileInfo.hash);
+        String fileName = swarm.fileInfo.fileName;
+
+        // Only one of concurrent announcements of the same file wins
+        Swarm existingSwarm;
+        while ((existingSwarm = swarmsByHash.putIfAbsent(hash, swarm)) != null) {
+            if (!existingSwarm.isDestroyed()) {
+                return false;
+            }
+
+            // The previous swarm is on its way out, take its place
+            if (swarmsByHash.replace(hash, existingSwarm, swarm)) {
+                break;
+            }
+        }
+
+        // The first swarm announced under a name keeps it, a swarm which can not be found by its name is withdrawn
+        Swarm namedSwarm;
+        while ((namedSwarm = swarmsByName.putIfAbsent(fileName, swarm)) != null) {
+            if (!namedSwarm.isDestroyed()) {
+                swarmsByHash.remove(hash, swarm);
+                return false;
+            }
+
+            if (swarmsByName.replace(fileName, namedSwarm, swarm)) {
+                break;
+            }
+        }
+
+        return true;
+    }
+
+    private void removeSwarm(Swarm swarm) {
+        // Remove the swarm only if it has not been replaced meanwhile
+        swarmsByHash.remove(ByteBuffer.wrap(swarm.fileInfo.hash), swarm);
+        swarmsByName.remove(swarm.fileInfo.fileName, swarm);
+    }
+
+    public Collection<Swarm> getSwarms() {
+        return Collections.unmodifiableCollection(swarmsByHash.values());
+    }
+
+    public Collection<Swarm> getSwarmsFrom(String fileName, boolean isInclusive) {
+        // A live view in the order of names, which neither copies nor blocks the registry
+        return Collections.unmodifiableCollection(swarmsByName.tailMap(fileName, isInclusive).values());
+    }
+
+    Collection<Swarm> getNamedSwarms() {
+        return Collections.unmodifiableCollection(swarmsByName.values());
+    }
+
+    Set<UUID> getIndexedPeerIDs() {
+        return Collections.unmodifiableSet(swarmsByPeer.keySet());
+    }
+
+    Set<Swarm> getIndexedSwarms(UUID peerID) {
+        // The swarms the reverse index holds for the peer, null if it holds none
+        Set<Swarm> swarms = swarmsByPeer.get(peerID);
+        return swarms != null ? Collections.unmodifiableSet(swarms) : null;
+    }
+}
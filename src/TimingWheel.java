@@ -0,0 +1,91 @@
+import java.util.ArrayList;
+import java.util.Collection;
+
+public class TimingWheel<T> {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOT_COUNT = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOT_COUNT - 1;
+    private static final int LEVEL_COUNT = 4;
+
+    private final long tickDuration;
+    private final ArrayList<ArrayList<Entry<T>>> slots;
+
+    // The last tick which has been processed
+    private long currentTick;
+
+    public TimingWheel(long tickDuration, long now) {
+        this.tickDuration = tickDuration;
+        this.slots = new ArrayList<>(LEVEL_COUNT * SLOT_COUNT);
+        this.currentTick = Math.floorDiv(now, tickDuration);
+
+        for (int i = 0; i < LEVEL_COUNT * SLOT_COUNT; i++) {
+            slots.add(new ArrayList<Entry<T>>());
+        }
+    }
+
+    public synchronized void schedule(T item, long deadline) {
+        long tick = Math.max(Math.floorDiv(deadline, tickDuration), currentTick + 1);
+
+        // Deadlines beyond the reach of the top level fire early and are expected to be scheduled again
+        int topShift = SLOT_BITS * (LEVEL_COUNT - 1);
+        long horizon = ((currentTick >> topShift) + SLOT_MASK) << topShift;
+
+        insert(new Entry<>(item, Math.min(tick, horizon)));
+    }
+
+    public synchronized void advance(long now, Collection<T> expiredItems) {
+        long targetTick = Math.floorDiv(now, tickDuration);
+
+        while (currentTick < targetTick) {
+            currentTick++;
+
+            // Entering a new round of a level moves its next slot down to the finer levels, the coarsest first
+            int level = 0;
+            while (level < LEVEL_COUNT - 1 && (currentTick & ((1L << (SLOT_BITS * (level + 1))) - 1)) == 0) {
+                level++;
+            }
+
+            for (; level > 0; level--) {
+                ArrayList<Entry<T>> slot = getSlot(level, currentTick);
+                ArrayList<Entry<T>> entries = new ArrayList<>(slot);
+                slot.clear();
+
+                for (Entry<T> entry : entries) {
+                    insert(entry);
+                }
+            }
+
+            // Every entry left in the slot of the finest level is due now
+            ArrayList<Entry<T>> slot = getSlot(0, currentTick);
+            for (Entry<T> entry : slot) {
+                expiredItems.add(entry.item);
+            }
+            slot.clear();
+        }
+    }
+
+    private void insert(Entry<T> entry) {
+        // Choose the finest level whose current round contains the tick
+        int level = 0;
+        while (level < LEVEL_COUNT - 1 && (entry.tick >> (SLOT_BITS * (level + 1))) != (currentTick >> (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+
+        getSlot(level, entry.tick).add(entry);
+    }
+
+    private ArrayList<Entry<T>> getSlot(int level, long tick) {
+        int index = (int) ((tick >> (SLOT_BITS * level)) & SLOT_MASK);
+        return slots.get(level * SLOT_COUNT + index);
+    }
+
+    private static class Entry<T> {
+        private final T item;
+        private final long tick;
+
+        private Entry(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TokenBucket {
+    // Limits in bytes per second, zero leaves the direction unlimited
+    public static final long GLOBAL_UPLOAD_LIMIT = Long.getLong("bandwidth.upload", 0);
+    public static final long GLOBAL_DOWNLOAD_LIMIT = Long.getLong("bandwidth.download", 0);
+    public static final long PEER_UPLOAD_LIMIT = Long.getLong("bandwidth.peer.upload", 0);
+    public static final long PEER_DOWNLOAD_LIMIT = Long.getLong("bandwidth.peer.download", 0);
+
+    public static final TokenBucket GLOBAL_UPLOAD = new TokenBucket(GLOBAL_UPLOAD_LIMIT);
+    public static final TokenBucket GLOBAL_DOWNLOAD = new TokenBucket(GLOBAL_DOWNLOAD_LIMIT);
+
+    // Timer which resumes the reads and writes that have been delayed
+    public static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "bandwidth-limiter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // Amount of traffic which may be sent at once after an idle period
+    private static final long BURST_DURATION = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private final long rate;
+
+    // Time at which the traffic taken so far has been paid for, the bucket is kept as a single timestamp
+    private final AtomicLong paidTime = new AtomicLong(Long.MIN_VALUE);
+
+    public TokenBucket(long rate) {
+        this.rate = rate;
+    }
+
+    public long reserve(long bytes) {
+        if (rate <= 0) {
+            return 0;
+        }
+
+        long cost = bytes * TimeUnit.SECONDS.toNanos(1) / rate;
+
+        while (true) {
+            long now = System.nanoTime();
+            long current = paidTime.get();
+
+            // Unused time is not saved up, so an idle bucket holds at most a burst worth of tokens
+            long next = Math.max(current, now) + cost;
+
+            if (paidTime.compareAndSet(current, next)) {
+                // Taking tokens in advance is allowed, the caller waits for what exceeds the burst
+                return Math.max(0, next - BURST_DURATION - now);
+            }
+        }
+    }
+
+    public static long reserve(long bytes, TokenBucket globalBucket, TokenBucket peerBucket) {
+        // Both buckets are charged, the stricter one decides the delay
+        return Math.max(globalBucket.reserve(bytes), peerBucket.reserve(bytes));
+    }
+}
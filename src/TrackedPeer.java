@@ -0,0 +1,11 @@
+public class TrackedPeer {
+    public final PeerInfo peerInfo;
+
+    // Time of the last request from the peer, in milliseconds
+    public volatile long lastSeen;
+
+    public TrackedPeer(PeerInfo peerInfo, long lastSeen) {
+        this.peerInfo = peerInfo;
+        this.lastSeen = lastSeen;
+    }
+}
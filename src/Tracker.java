@@ -1,6 +1,17 @@
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Tracker {
     private static final InetAddress TRACKER_IP;
@@ -18,6 +29,20 @@ public class Tracker {
     private static final int MAX_UDP_PACKET_SIZE = 65507;
     private byte[] buffer = new byte[MAX_UDP_PACKET_SIZE];
 
+    // A request is sent again after the timeout, which doubles with every attempt
+    private static final long INITIAL_TIMEOUT = Long.getLong("tracker.timeout", 500);
+    private static final int MAXIMUM_ATTEMPTS = 5;
+
+    // Timer which sends the requests again when their replies are late
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "tracker-retransmitter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     private UUID trackerID;
     private DatagramSocket socket;
     private InetSocketAddress socketAddress;
@@ -25,6 +50,10 @@ public class Tracker {
     private CommunicationMediator mediator;
     private MessageObserver observer;
 
+    // Requests waiting for their replies, indexed by the transaction ID echoed by the tracker
+    private ConcurrentHashMap<Integer, Transaction> transactions = new ConcurrentHashMap<>();
+    private AtomicInteger nextTransactionID = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+
     public Tracker(UUID trackerID, CommunicationMediator mediator, MessageObserver observer) {
         this.trackerID = trackerID;
         this.mediator = mediator;
@@ -38,48 +67,132 @@ public class Tracker {
             this.socket = new DatagramSocket(Main.LISTENING_PORT);
         }catch (SocketException e) {
             System.err.println("Can not obtain the server socket.");
+            return;
         }
+
+        // Replies are received on their own thread, so that any number of requests can be outstanding
+        Thread receiver = new Thread() {
+            public void run() {
+                receiveMessage();
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
     }
 
-    public void sendMessage(byte[] message) {
+    public CompletableFuture<Void> sendMessage(byte[] message) {
+        // Write the transaction ID into the room left for it after the type of message
+        int transactionID = nextTransactionID.getAndIncrement();
+        System.arraycopy(ByteAuxiliary.toByteArray(transactionID), 0, message, 1, Integer.BYTES);
+
+        Transaction transaction = new Transaction(transactionID, message);
+        transactions.put(transactionID, transaction);
+
+        send(transaction);
+
+        return transaction.future;
+    }
+
+    public void sendNotification(byte[] message) {
         DatagramPacket packet = new DatagramPacket(message, message.length);
         packet.setSocketAddress(socketAddress);
 
         try {
             socket.send(packet);
-
-            // Wait for the reply
-            receiveMessage();
         } catch (IOException e) {
-            disconnect();
             System.err.println("Unable to send the UDP message.");
         }
     }
 
-    private void receiveMessage() {
-        try {
-            // Receive the packet
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    private void send(final Transaction transaction) {
+        // Wait for the reply twice as long as the last time, the timer is set first so the reply can cancel it
+        long timeout = INITIAL_TIMEOUT << transaction.attemptCount++;
+        transaction.retransmission = TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                retransmit(transaction);
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+
+        sendNotification(transaction.message);
+    }
 
-            socket.setSoTimeout(1000);
-            socket.receive(packet);
+    private void retransmit(Transaction transaction) {
+        // The reply has arrived meanwhile
+        if (transactions.get(transaction.transactionID) != transaction) {
+            return;
+        }
 
-            // Store received information into the separate buffer
-            byte[] data = new byte[packet.getLength()];
-            System.arraycopy(packet.getData(), packet.getOffset(), data, 0, packet.getLength());
+        if (transaction.attemptCount < MAXIMUM_ATTEMPTS) {
+            send(transaction);
+        } else if (transactions.remove(transaction.transactionID, transaction)) {
+            transaction.future.completeExceptionally(new TimeoutException("The tracker has not replied."));
+        }
+    }
 
-            // Handle the message
-            observer.handleMessage(trackerID, data);
+    private void receiveMessage() {
+        try {
+            while (true) {
+                // Receive the packet
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+
+                // Store received information into the separate buffer
+                byte[] data = new byte[packet.getLength()];
+                System.arraycopy(packet.getData(), packet.getOffset(), data, 0, packet.getLength());
+
+                // Match the reply to its request, the late and duplicate ones are dropped
+                if (data.length < 1 + Integer.BYTES) {
+                    continue;
+                }
+
+                Transaction transaction = transactions.remove(ByteBuffer.wrap(data, 1, Integer.BYTES).getInt());
+                if (transaction == null) {
+                    continue;
+                }
+                transaction.retransmission.cancel(false);
+
+                // Handle the message
+                try {
+                    observer.handleMessage(trackerID, data);
+                    transaction.future.complete(null);
+                } catch (RuntimeException e) {
+                    System.err.println("Received a malformed message from the tracker.");
+                    transaction.future.completeExceptionally(e);
+                }
+            }
         } catch (IOException e) {
-            if (e instanceof SocketTimeoutException) return;
-
-            disconnect();
-            System.err.println("An error occurred during read from the socket.");
+            if (!socket.isClosed()) {
+                System.err.println("An error occurred during read from the socket.");
+            }
         }
 
+        // Nothing is going to reply to the outstanding requests
+        for (Transaction transaction : transactions.values()) {
+            if (transactions.remove(transaction.transactionID, transaction)) {
+                transaction.retransmission.cancel(false);
+                transaction.future.completeExceptionally(new SocketException("The tracker socket has been closed."));
+            }
+        }
     }
 
     public void disconnect() {
         socket.close();
     }
 }
+
+class Transaction {
+    public final int transactionID;
+    public final byte[] message;
+    public final CompletableFuture<Void> future;
+
+    // Touched by the sender and then only by the timer
+    public int attemptCount;
+    public volatile ScheduledFuture<?> retransmission;
+
+    public Transaction(int transactionID, byte[] message) {
+        this.transactionID = transactionID;
+        this.message = message;
+        this.future = new CompletableFuture<>();
+    }
+}
@@ -0,0 +1,497 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+public class TrackerJournal {
+    private static final int MAGIC = 0x54524b53;
+    private static final int VERSION = 1;
+
+    // The log is compacted into a new snapshot once it has grown this much
+    private static final int SNAPSHOT_RECORD_COUNT = 1000000;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final byte PEER_RECORD = 0;
+    private static final byte SWARM_RECORD = 1;
+    private static final byte JOIN_RECORD = 2;
+    private static final byte LEAVE_RECORD = 3;
+
+    private final File directory;
+    private final SwarmRegistry swarms;
+    private final ConcurrentHashMap<UUID, TrackedPeer> peersInfo;
+
+    // Records are handed over to the writer thread, the request path never touches the disk
+    private final LinkedBlockingQueue<Record> records = new LinkedBlockingQueue<>();
+
+    // Nothing is queued unless the journal has been started successfully
+    private volatile boolean isEnabled;
+
+    private FileChannel log;
+    private long generation;
+    private int loggedRecordCount;
+
+    public TrackerJournal(File directory, SwarmRegistry swarms, ConcurrentHashMap<UUID, TrackedPeer> peersInfo) {
+        this.directory = directory;
+        this.swarms = swarms;
+        this.peersInfo = peersInfo;
+    }
+
+    public void recover(long now) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println("Can not create the tracker data directory " + directory);
+            return;
+        }
+
+        long startTime = System.nanoTime();
+
+        // Load the latest snapshot, then replay every log written since it has been started
+        File snapshot = new File(directory, "tracker.snapshot");
+        if (snapshot.exists()) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), BUFFER_SIZE))) {
+                readSnapshot(input, now);
+            } catch (IOException e) {
+                System.err.println("Can not read the tracker snapshot, starting from the logs.");
+            }
+        }
+
+        long lastGeneration = generation;
+        for (File file : listLogs()) {
+            long logGeneration = getGeneration(file);
+
+            if (logGeneration < generation) {
+                file.delete();
+                continue;
+            }
+
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+                readLog(input, now);
+            } catch (IOException e) {
+                System.err.println("Can not read the tracker log " + file);
+            }
+
+            lastGeneration = Math.max(lastGeneration, logGeneration);
+        }
+
+        // Members recovered from a fuzzy snapshot may have left without their swarms being written again
+        for (Swarm swarm : swarms.getSwarms()) {
+            for (boolean isSeeder : new boolean[]{true, false}) {
+                for (UUID peerID : swarm.getPeerIDs(isSeeder)) {
+                    if (!peersInfo.containsKey(peerID)) {
+                        swarms.removePeer(peerID);
+                    }
+                }
+            }
+        }
+
+        swarms.removeEmptySwarms();
+        generation = lastGeneration;
+
+        System.out.println("Recovered " + peersInfo.size() + " peers and " + swarms.getSwarms().size() + " swarms in "
+                + (System.nanoTime() - startTime) / 1000000 + " ms.");
+    }
+
+    public void start() {
+        // Start from a fresh snapshot, so the recovered logs can be dropped
+        try {
+            writeSnapshot();
+        } catch (IOException e) {
+            System.err.println("Can not write the tracker snapshot.");
+            return;
+        }
+
+        isEnabled = true;
+
+        Thread writer = new Thread() {
+            public void run() {
+                writeRecords();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void logPeer(PeerInfo peerInfo) {
+        if (isEnabled) {
+            records.add(new Record(PEER_RECORD, peerInfo.peerID, peerInfo, null));
+        }
+    }
+
+    public void logSwarm(FileInfo fileInfo, UUID peerID) {
+        if (isEnabled) {
+            records.add(new Record(SWARM_RECORD, peerID, null, fileInfo));
+        }
+    }
+
+    public void logJoin(FileInfo fileInfo, UUID peerID) {
+        if (isEnabled) {
+            records.add(new Record(JOIN_RECORD, peerID, null, fileInfo));
+        }
+    }
+
+    public void logLeave(UUID peerID) {
+        if (isEnabled) {
+            records.add(new Record(LEAVE_RECORD, peerID, null, null));
+        }
+    }
+
+    private void writeRecords() {
+        ArrayList<Record> batch = new ArrayList<>();
+        ByteArrayOutputStream batchBytes = new ByteArrayOutputStream(BUFFER_SIZE);
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+        DataOutputStream recordOutput = new DataOutputStream(recordBytes);
+        DataOutputStream batchOutput = new DataOutputStream(batchBytes);
+        CRC32 crc = new CRC32();
+
+        while (true) {
+            try {
+                // Everything queued while the previous batch was being synced is committed together
+                batch.add(records.take());
+                records.drainTo(batch);
+
+                batchBytes.reset();
+                for (Record record : batch) {
+                    recordBytes.reset();
+                    writeRecord(recordOutput, record);
+
+                    crc.reset();
+                    crc.update(recordBytes.toByteArray(), 0, recordBytes.size());
+
+                    batchOutput.writeInt(recordBytes.size());
+                    batchOutput.writeInt((int) crc.getValue());
+                    recordBytes.writeTo(batchOutput);
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(batchBytes.toByteArray(), 0, batchBytes.size());
+                while (buffer.hasRemaining()) {
+                    log.write(buffer);
+                }
+                log.force(false);
+
+                loggedRecordCount += batch.size();
+                batch.clear();
+
+                if (loggedRecordCount >= SNAPSHOT_RECORD_COUNT) {
+                    writeSnapshot();
+                }
+            } catch (InterruptedException e) {
+                System.err.println("Problem with the tracker journal thread!");
+                return;
+            } catch (IOException e) {
+                System.err.println("Can not write the tracker log, the state is not persisted anymore.");
+                isEnabled = false;
+                records.clear();
+                return;
+            }
+        }
+    }
+
+    private void writeSnapshot() throws IOException {
+        // Continue logging into a new generation, the snapshot covers everything before it
+        FileChannel previousLog = log;
+        long previousGeneration = generation;
+
+        generation++;
+        log = FileChannel.open(getLogFile(generation).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        loggedRecordCount = 0;
+
+        if (previousLog != null) {
+            previousLog.close();
+        }
+
+        // The snapshot is taken while requests go on, replaying the new log over it is idempotent
+        File temporary = new File(directory, "tracker.snapshot.tmp");
+        try (FileOutputStream stream = new FileOutputStream(temporary);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE))) {
+            writeSnapshot(output);
+            output.flush();
+            stream.getFD().sync();
+        }
+
+        Files.move(temporary.toPath(), new File(directory, "tracker.snapshot").toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // Logs older than the snapshot are not needed anymore
+        for (File file : listLogs()) {
+            if (getGeneration(file) <= previousGeneration) {
+                file.delete();
+            }
+        }
+    }
+
+    private void writeSnapshot(DataOutputStream output) throws IOException {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeLong(generation);
+
+        ArrayList<TrackedPeer> trackedPeers = new ArrayList<>(peersInfo.values());
+        output.writeInt(trackedPeers.size());
+        for (TrackedPeer trackedPeer : trackedPeers) {
+            writePeerInfo(output, trackedPeer.peerInfo);
+        }
+
+        ArrayList<Swarm> swarmList = new ArrayList<>(swarms.getSwarms());
+        output.writeInt(swarmList.size());
+        for (Swarm swarm : swarmList) {
+            writeFileInfo(output, swarm.fileInfo);
+            writePeerIDs(output, swarm.getPeerIDs(true));
+            writePeerIDs(output, swarm.getPeerIDs(false));
+        }
+    }
+
+    private void readSnapshot(DataInputStream input, long now) throws IOException {
+        if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+            throw new IOException("Unknown snapshot format");
+        }
+
+        generation = input.readLong();
+
+        int peerCount = input.readInt();
+        for (int i = 0; i < peerCount; i++) {
+            restorePeer(readPeerInfo(input), now);
+        }
+
+        int swarmCount = input.readInt();
+        for (int i = 0; i < swarmCount; i++) {
+            Swarm swarm = swarms.restoreSwarm(readFileInfo(input));
+
+            for (boolean isSeeder : new boolean[]{true, false}) {
+                int count = input.readInt();
+                for (int j = 0; j < count; j++) {
+                    UUID peerID = readUUID(input);
+
+                    // A swarm whose name is held by another one can not be restored
+                    if (swarm != null) {
+                        swarms.restorePeer(swarm, peerID, isSeeder);
+                    }
+                }
+            }
+        }
+    }
+
+    private void readLog(DataInputStream input, long now) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] recordBytes = new byte[256];
+
+        while (true) {
+            int length;
+            int checksum;
+            try {
+                length = input.readInt();
+                checksum = input.readInt();
+
+                if (length < 0 || length > (1 << 24)) {
+                    return;
+                }
+
+                if (recordBytes.length < length) {
+                    recordBytes = new byte[length];
+                }
+                input.readFully(recordBytes, 0, length);
+            } catch (EOFException e) {
+                // The tail of the log may have been torn by a crash
+                return;
+            }
+
+            crc.reset();
+            crc.update(recordBytes, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                System.err.println("The tracker log is corrupted, the rest of it is skipped.");
+                return;
+            }
+
+            applyRecord(new DataInputStream(new ByteArrayInputStream(recordBytes, 0, length)), now);
+        }
+    }
+
+    private void writeRecord(DataOutputStream output, Record record) throws IOException {
+        output.writeByte(record.type);
+
+        switch (record.type) {
+            case PEER_RECORD:
+                writePeerInfo(output, record.peerInfo);
+                break;
+            case SWARM_RECORD:
+                writeUUID(output, record.peerID);
+                writeFileInfo(output, record.fileInfo);
+                break;
+            case JOIN_RECORD:
+                writeUUID(output, record.peerID);
+                output.write(record.fileInfo.hash);
+                break;
+            case LEAVE_RECORD:
+                writeUUID(output, record.peerID);
+                break;
+        }
+    }
+
+    private void applyRecord(DataInputStream input, long now) throws IOException {
+        // Every record can be applied more than once with the same result
+        byte type = input.readByte();
+
+        switch (type) {
+            case PEER_RECORD:
+                restorePeer(readPeerInfo(input), now);
+                break;
+            case SWARM_RECORD: {
+                UUID peerID = readUUID(input);
+                Swarm swarm = swarms.restoreSwarm(readFileInfo(input));
+                if (swarm != null) {
+                    swarms.restorePeer(swarm, peerID, true);
+                }
+                break;
+            }
+            case JOIN_RECORD: {
+                UUID peerID = readUUID(input);
+                byte[] hash = new byte[FileInfo.SHA_1.getDigestLength()];
+                input.readFully(hash);
+
+                Swarm swarm = swarms.findByHash(hash);
+                if (swarm != null) {
+                    swarms.restorePeer(swarm, peerID, false);
+                }
+                break;
+            }
+            case LEAVE_RECORD: {
+                UUID peerID = readUUID(input);
+                swarms.removePeer(peerID);
+                peersInfo.remove(peerID);
+                break;
+            }
+        }
+    }
+
+    private void restorePeer(PeerInfo peerInfo, long now) {
+        // Restored peers get a whole timeout to send a heartbeat
+        peersInfo.putIfAbsent(peerInfo.peerID, new TrackedPeer(peerInfo, now));
+    }
+
+    private static void writePeerInfo(DataOutputStream output, PeerInfo peerInfo) throws IOException {
+        writeUUID(output, peerInfo.peerID);
+        output.write(peerInfo.inetAddress.getAddress(), 0, Integer.BYTES);
+        output.writeInt(peerInfo.port);
+    }
+
+    private static PeerInfo readPeerInfo(DataInputStream input) throws IOException {
+        UUID peerID = readUUID(input);
+        byte[] address = new byte[Integer.BYTES];
+        input.readFully(address);
+        int port = input.readInt();
+
+        return new PeerInfo(peerID, InetAddress.getByAddress(address), port);
+    }
+
+    private static void writeFileInfo(DataOutputStream output, FileInfo fileInfo) throws IOException {
+        output.writeUTF(fileInfo.fileName);
+        output.writeLong(fileInfo.size);
+        output.writeInt(fileInfo.pieceSize);
+        output.writeInt(fileInfo.pieceCount);
+
+        for (byte[] pieceHash : fileInfo.pieceHashes) {
+            output.write(pieceHash, 0, FileInfo.SHA_1.getDigestLength());
+        }
+    }
+
+    private static FileInfo readFileInfo(DataInputStream input) throws IOException {
+        String fileName = input.readUTF();
+        long size = input.readLong();
+        int pieceSize = input.readInt();
+        int pieceCount = input.readInt();
+
+        byte[][] pieceHashes = new byte[pieceCount][FileInfo.SHA_1.getDigestLength()];
+        for (byte[] pieceHash : pieceHashes) {
+            input.readFully(pieceHash);
+        }
+
+        return new FileInfo(fileName, size, pieceSize, pieceCount, pieceHashes);
+    }
+
+    private static void writePeerIDs(DataOutputStream output, ArrayList<UUID> peerIDs) throws IOException {
+        output.writeInt(peerIDs.size());
+        for (UUID peerID : peerIDs) {
+            writeUUID(output, peerID);
+        }
+    }
+
+    private static void writeUUID(DataOutputStream output, UUID uuid) throws IOException {
+        output.writeLong(uuid.getMostSignificantBits());
+        output.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUUID(DataInputStream input) throws IOException {
+        return new UUID(input.readLong(), input.readLong());
+    }
+
+    private File getLogFile(long generation) {
+        return new File(directory, "tracker." + generation + ".log");
+    }
+
+    private ArrayList<File> listLogs() {
+        ArrayList<File> logs = new ArrayList<>();
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (getGeneration(file) >= 0) {
+                    logs.add(file);
+                }
+            }
+        }
+
+        // Replay in the order the logs have been written
+        logs.sort(new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.compare(getGeneration(o1), getGeneration(o2));
+            }
+        });
+
+        return logs;
+    }
+
+    private static long getGeneration(File file) {
+        String name = file.getName();
+        if (!name.startsWith("tracker.") || !name.endsWith(".log")) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(name.substring("tracker.".length(), name.length() - ".log".length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static class Record {
+        private final byte type;
+        private final UUID peerID;
+        private final PeerInfo peerInfo;
+        private final FileInfo fileInfo;
+
+        private Record(byte type, UUID peerID, PeerInfo peerInfo, FileInfo fileInfo) {
+            this.type = type;
+            this.peerID = peerID;
+            this.peerInfo = peerInfo;
+            this.fileInfo = fileInfo;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WriteQueue {
+    // Upper bound of buffers passed to a single gathering write
+    private static final int MAXIMUM_GATHERED_BUFFERS = 64;
+
+    private final AsynchronousSocketChannel socketChannel;
+    private final TokenBucket uploadBucket;
+    private final Metrics metrics;
+    private final ConcurrentLinkedQueue<PooledBuffer[]> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger messageCount = new AtomicInteger();
+    private final AtomicBoolean isWriting = new AtomicBoolean(false);
+    private volatile boolean isClosed = false;
+
+    // State of the gathering write in progress, touched only by the writer
+    private final ByteBuffer[] buffers = new ByteBuffer[MAXIMUM_GATHERED_BUFFERS];
+    private final PooledBuffer[] owners = new PooledBuffer[MAXIMUM_GATHERED_BUFFERS];
+    private int offset;
+    private int length;
+
+    public WriteQueue(AsynchronousSocketChannel socketChannel, TokenBucket uploadBucket, Metrics metrics) {
+        this.socketChannel = socketChannel;
+        this.uploadBucket = uploadBucket;
+        this.metrics = metrics;
+    }
+
+    public void enqueue(PooledBuffer... message) {
+        if (message.length > MAXIMUM_GATHERED_BUFFERS) {
+            throw new IllegalArgumentException("The message consists of too many buffers.");
+        }
+
+        if (isClosed) {
+            release(message);
+            return;
+        }
+
+        // All buffers of the message are queued together to keep them contiguous on the wire
+        messages.add(message);
+        messageCount.incrementAndGet();
+        metrics.updateQueueDepth(1);
+
+        // Do not leave the message behind if the queue has been closed meanwhile
+        if (isClosed) {
+            close();
+            return;
+        }
+
+        if (isWriting.compareAndSet(false, true)) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() {
+        offset = 0;
+        length = 0;
+
+        // Coalesce queued messages into one batch
+        PooledBuffer[] message;
+        while ((message = messages.peek()) != null && length + message.length <= MAXIMUM_GATHERED_BUFFERS) {
+            messages.poll();
+            messageCount.decrementAndGet();
+            metrics.updateQueueDepth(-1);
+
+            for (PooledBuffer pooledBuffer : message) {
+                owners[length] = pooledBuffer;
+                buffers[length++] = pooledBuffer.getBuffer();
+            }
+        }
+
+        if (length == 0) {
+            isWriting.set(false);
+
+            // Check whether something has been queued right before the flag was cleared
+            if (!messages.isEmpty() && isWriting.compareAndSet(false, true)) {
+                writeNext();
+            }
+            return;
+        }
+
+        // Hold the batch back until the upload limits allow it, nothing is dropped
+        long bytes = 0;
+        for (int i = 0; i < length; i++) {
+            bytes += buffers[i].remaining();
+        }
+
+        long delay = TokenBucket.reserve(bytes, TokenBucket.GLOBAL_UPLOAD, uploadBucket);
+        if (delay > 0) {
+            TokenBucket.TIMER.schedule(delayedWrite, delay, TimeUnit.NANOSECONDS);
+        } else {
+            write();
+        }
+    }
+
+    private final Runnable delayedWrite = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    private void write() {
+        socketChannel.write(buffers, offset, length - offset, 0L, TimeUnit.MILLISECONDS, null, writeHandler);
+    }
+
+    private final CompletionHandler<Long, Void> writeHandler = new CompletionHandler<Long, Void>() {
+        @Override
+        public void completed(Long written, Void attachment) {
+            metrics.recordBytesOut(written);
+
+            // Release every buffer which has been completely written
+            while (offset < length && !buffers[offset].hasRemaining()) {
+                owners[offset].release();
+                owners[offset] = null;
+                buffers[offset++] = null;
+            }
+
+            if (offset < length) {
+                // Finish the partial write
+                write();
+            } else {
+                writeNext();
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            for (int i = offset; i < length; i++) {
+                owners[i].release();
+                owners[i] = null;
+                buffers[i] = null;
+            }
+
+            close();
+            isWriting.set(false);
+        }
+    };
+
+    public void close() {
+        isClosed = true;
+
+        // Drop everything that has not been written yet
+        PooledBuffer[] message;
+        while ((message = messages.poll()) != null) {
+            messageCount.decrementAndGet();
+            metrics.updateQueueDepth(-1);
+            release(message);
+        }
+    }
+
+    public int getQueueDepth() {
+        return messageCount.get();
+    }
+
+    private void release(PooledBuffer[] message) {
+        for (PooledBuffer pooledBuffer : message) {
+            pooledBuffer.release();
+        }
+    }
+}
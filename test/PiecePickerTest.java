@@ -0,0 +1,216 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Random;
+
+// Checks the picks of the bucketed picker against a plain scan of the candidates.
+// Run with: javac -d out src/*.java test/*.java && java -cp out PiecePickerTest [pickers]
+public class PiecePickerTest {
+    // Returned by a pick when the peer has nothing we need
+    private static final int NONE = -1;
+
+    // More than a single pick scans, so that the bounded paths are exercised
+    private static final int RARE_PIECE_COUNT = 64;
+
+    public static void main(String[] args) {
+        int pickerCount = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+
+        checkRarestPick();
+        checkExcludeAndInclude();
+        checkNoOverlap();
+        checkWrapAround();
+        checkFallbackPick();
+        checkRandomPicks(pickerCount);
+
+        System.out.println("The picker has passed every check.");
+    }
+
+    private static void checkRarestPick() {
+        // Every piece has another availability and few pieces are scanned completely, so the rarest is always found
+        PiecePicker picker = new PiecePicker(8, new BitSet());
+        for (int i = 0; i < 8; i++) {
+            for (int count = 0; count < 1 + (i * 5) % 8; count++) {
+                picker.addPiece(i);
+            }
+        }
+
+        BitSet peerPieces = new BitSet();
+        peerPieces.set(1, 8);
+        check(picker.pick(peerPieces) == 5, "the rarest piece is not picked");
+
+        peerPieces.clear(5);
+        check(picker.pick(peerPieces) == 2, "the rarest remaining piece is not picked");
+    }
+
+    private static void checkExcludeAndInclude() {
+        PiecePicker picker = new PiecePicker(4, new BitSet());
+        BitSet peerPieces = new BitSet();
+        peerPieces.set(0, 4);
+        picker.addPeer(peerPieces);
+
+        // Pieces in progress are never picked
+        picker.exclude(0);
+        picker.exclude(1);
+        picker.exclude(2);
+        check(picker.pick(peerPieces) == 3, "an excluded piece is picked");
+
+        picker.exclude(3);
+        check(picker.pick(peerPieces) == NONE, "a piece is picked while all are excluded");
+
+        // A dropped download makes the piece a candidate again, with the availability it has gained meanwhile
+        picker.addPiece(1);
+        picker.include(1);
+        check(picker.pick(peerPieces) == 1, "an included piece is not picked");
+        check(picker.getAvailability(1) == 2, "the availability of an excluded piece is lost");
+
+        // Pieces present at the start are excluded as well
+        BitSet present = new BitSet();
+        present.set(0, 3);
+        picker = new PiecePicker(4, present);
+        picker.addPeer(peerPieces);
+        check(picker.pick(peerPieces) == 3, "a present piece is picked");
+    }
+
+    private static void checkNoOverlap() {
+        PiecePicker picker = new PiecePicker(RARE_PIECE_COUNT * 2, new BitSet());
+        BitSet otherPieces = new BitSet();
+        otherPieces.set(0, RARE_PIECE_COUNT);
+        picker.addPeer(otherPieces);
+
+        // The peer has only pieces nobody else has or that lie beyond the file
+        BitSet peerPieces = new BitSet();
+        peerPieces.set(RARE_PIECE_COUNT * 2, RARE_PIECE_COUNT * 3);
+        check(picker.pick(peerPieces) == NONE, "a piece beyond the file is picked");
+        check(picker.pick(new BitSet()) == NONE, "a piece is picked from a peer without pieces");
+
+        check(new PiecePicker(0, new BitSet()).pick(peerPieces) == NONE, "a piece is picked from an empty file");
+    }
+
+    private static void checkWrapAround() {
+        int pieceCount = RARE_PIECE_COUNT * 4;
+
+        // The rarest pieces fill more than a scan, so the peer's pieces are found only by the fallback
+        for (int onlyPiece : new int[]{0, 1, pieceCount / 2, pieceCount - 1}) {
+            PiecePicker picker = new PiecePicker(pieceCount, new BitSet());
+
+            BitSet rarePieces = new BitSet();
+            rarePieces.set(pieceCount - RARE_PIECE_COUNT * 2, pieceCount);
+            rarePieces.clear(onlyPiece);
+            picker.addPeer(rarePieces);
+
+            BitSet commonPieces = new BitSet();
+            commonPieces.set(onlyPiece);
+            picker.addPeer(commonPieces);
+            picker.addPeer(commonPieces);
+
+            // The random start lies after the single candidate most of the time
+            for (int i = 0; i < 100; i++) {
+                check(picker.pick(commonPieces) == onlyPiece, "the only candidate " + onlyPiece + " is missed");
+            }
+        }
+    }
+
+    private static void checkFallbackPick() {
+        int pieceCount = RARE_PIECE_COUNT * 4;
+        PiecePicker picker = new PiecePicker(pieceCount, new BitSet());
+
+        // The peer lacks the rarest pieces
+        BitSet rarePieces = new BitSet();
+        rarePieces.set(0, RARE_PIECE_COUNT);
+        picker.addPeer(rarePieces);
+
+        // It has fewer pieces than a scan, each with another availability
+        BitSet peerPieces = new BitSet();
+        for (int i = 0; i < 16; i++) {
+            int pieceIndex = RARE_PIECE_COUNT + i * 8;
+            peerPieces.set(pieceIndex);
+            for (int count = 0; count < 2 + (i * 7) % 16; count++) {
+                picker.addPiece(pieceIndex);
+            }
+        }
+
+        int rarestPiece = rarestPiece(picker, peerPieces);
+        for (int i = 0; i < 100; i++) {
+            check(picker.pick(peerPieces) == rarestPiece, "the rarest of the scanned candidates is not picked");
+        }
+    }
+
+    private static void checkRandomPicks(int pickerCount) {
+        Random random = new Random(1);
+        int rarestCount = 0;
+        int pickCount = 0;
+
+        for (int n = 0; n < pickerCount; n++) {
+            int pieceCount = 1 + random.nextInt(3000);
+
+            BitSet excluded = new BitSet();
+            for (int i = 0; i < pieceCount; i++) {
+                if (random.nextInt(3) == 0) {
+                    excluded.set(i);
+                }
+            }
+
+            PiecePicker picker = new PiecePicker(pieceCount, excluded);
+            ArrayList<BitSet> peers = new ArrayList<>();
+            for (int k = 0; k < 5; k++) {
+                BitSet pieces = new BitSet();
+                for (int i = 0; i < pieceCount; i++) {
+                    if (random.nextInt(4) < k) {
+                        pieces.set(i);
+                    }
+                }
+                peers.add(pieces);
+                picker.addPeer(pieces);
+            }
+
+            // Move a few pieces in and out of progress
+            for (int k = 0; k < 8; k++) {
+                int pieceIndex = random.nextInt(pieceCount);
+                if (excluded.get(pieceIndex)) {
+                    excluded.clear(pieceIndex);
+                    picker.include(pieceIndex);
+                } else {
+                    excluded.set(pieceIndex);
+                    picker.exclude(pieceIndex);
+                }
+            }
+
+            BitSet peerPieces = peers.get(random.nextInt(peers.size()));
+            BitSet candidates = (BitSet) peerPieces.clone();
+            candidates.andNot(excluded);
+
+            int pieceIndex = picker.pick(peerPieces);
+            if (candidates.isEmpty()) {
+                check(pieceIndex == NONE, "a piece is picked without candidates");
+                continue;
+            }
+
+            check(pieceIndex != NONE, "nothing is picked although there are candidates");
+            check(candidates.get(pieceIndex), "a piece which is no candidate is picked");
+
+            pickCount++;
+            if (picker.getAvailability(pieceIndex) == picker.getAvailability(rarestPiece(picker, candidates))) {
+                rarestCount++;
+            }
+        }
+
+        // Rarest first is approximate once the peer lacks the rarest pieces, report how close it is
+        System.out.println(rarestCount + " of " + pickCount + " random picks had the lowest availability.");
+    }
+
+    private static int rarestPiece(PiecePicker picker, BitSet candidates) {
+        int rarestPiece = NONE;
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if (rarestPiece == NONE || picker.getAvailability(i) < picker.getAvailability(rarestPiece)) {
+                rarestPiece = i;
+            }
+        }
+
+        return rarestPiece;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
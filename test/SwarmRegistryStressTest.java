@@ -0,0 +1,138 @@
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Hammers the registry from many threads and checks its invariants whenever the threads have stopped.
+// Run with: javac -d out src/*.java test/*.java && java -cp out SwarmRegistryStressTest [threads] [rounds]
+public class SwarmRegistryStressTest {
+    private static final int FILE_COUNT = 16;
+    private static final int NAME_COUNT = 12;
+    private static final int PEER_COUNT = 64;
+    private static final int OPERATIONS_PER_ROUND = 20000;
+
+    public static void main(String[] args) throws Exception {
+        int threadCount = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        int roundCount = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        // Fewer names than files, so that announcements also race for the names
+        final FileInfo[] files = new FileInfo[FILE_COUNT];
+        for (int i = 0; i < FILE_COUNT; i++) {
+            byte[][] pieceHashes = new byte[1][FileInfo.SHA_1.getDigestLength()];
+            pieceHashes[0][0] = (byte) i;
+            files[i] = new FileInfo("file-" + (i % NAME_COUNT), 1, 1, 1, pieceHashes);
+        }
+
+        final UUID[] peerIDs = new UUID[PEER_COUNT];
+        for (int i = 0; i < PEER_COUNT; i++) {
+            peerIDs[i] = UUID.randomUUID();
+        }
+
+        final SwarmRegistry swarms = new SwarmRegistry();
+
+        for (int round = 0; round < roundCount; round++) {
+            final CountDownLatch start = new CountDownLatch(1);
+            ArrayList<Thread> threads = new ArrayList<>();
+
+            for (int i = 0; i < threadCount; i++) {
+                Thread thread = new Thread() {
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        for (int j = 0; j < OPERATIONS_PER_ROUND; j++) {
+                            FileInfo fileInfo = files[random.nextInt(FILE_COUNT)];
+                            UUID peerID = peerIDs[random.nextInt(PEER_COUNT)];
+                            Swarm swarm;
+
+                            switch (random.nextInt(4)) {
+                                case 0:
+                                    swarms.createSwarm(fileInfo, peerID);
+                                    break;
+                                case 1:
+                                    if ((swarm = swarms.findByName(fileInfo.fileName)) != null) {
+                                        swarms.addPeer(swarm, peerID);
+                                    }
+                                    break;
+                                case 2:
+                                    if ((swarm = swarms.findByHash(fileInfo.hash)) != null) {
+                                        swarms.addSeeder(swarm, peerID);
+                                    }
+                                    break;
+                                case 3:
+                                    swarms.removePeer(peerID);
+                                    break;
+                            }
+                        }
+                    }
+                };
+                thread.start();
+                threads.add(thread);
+            }
+
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            checkInvariants(swarms);
+        }
+
+        // Everyone leaves, nothing may be left behind
+        for (UUID peerID : peerIDs) {
+            swarms.removePeer(peerID);
+        }
+        checkInvariants(swarms);
+        check(swarms.getSwarms().isEmpty(), "swarms are left after every peer has left");
+
+        System.out.println("The registry has kept its invariants over " + roundCount + " rounds of " + threadCount + " threads.");
+    }
+
+    private static void checkInvariants(SwarmRegistry swarms) {
+        // Every registered swarm is alive, has members and is reachable by its hash and its name
+        for (Swarm swarm : swarms.getSwarms()) {
+            check(swarms.findByHash(swarm.fileInfo.hash) == swarm, "a swarm is registered under another hash");
+            check(!swarm.isDestroyed(), "a destroyed swarm is registered");
+            check(!swarm.getPeerIDs(true).isEmpty() || !swarm.getPeerIDs(false).isEmpty(), "an empty swarm is registered");
+            check(swarms.findByName(swarm.fileInfo.fileName) == swarm, "a registered swarm can not be found by its name");
+
+            // Every member knows about the swarm
+            for (boolean isSeeder : new boolean[]{true, false}) {
+                for (UUID peerID : swarm.getPeerIDs(isSeeder)) {
+                    Set<Swarm> peerSwarms = swarms.getIndexedSwarms(peerID);
+                    check(peerSwarms != null && peerSwarms.contains(swarm), "a member is missing from the peer index");
+                }
+            }
+        }
+
+        // The name index holds only registered swarms
+        for (Swarm swarm : swarms.getNamedSwarms()) {
+            check(swarms.findByHash(swarm.fileInfo.hash) == swarm, "a named swarm is not registered");
+        }
+
+        // The peer index holds only registered swarms which contain the peer
+        for (UUID peerID : swarms.getIndexedPeerIDs()) {
+            Set<Swarm> peerSwarms = swarms.getIndexedSwarms(peerID);
+            if (peerSwarms == null) {
+                continue;
+            }
+
+            for (Swarm swarm : peerSwarms) {
+                check(swarms.findByHash(swarm.fileInfo.hash) == swarm, "the peer index holds an unregistered swarm");
+                check(swarm.getPeerIDs(true).contains(peerID) || swarm.getPeerIDs(false).contains(peerID),
+                        "the peer index holds a swarm without the peer");
+            }
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}